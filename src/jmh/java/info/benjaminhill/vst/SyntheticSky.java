@@ -0,0 +1,155 @@
+package info.benjaminhill.vst;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Deterministic fake night: stars rotating about a pole, sensor noise and hot pixels. Same seed, same frames, so
+ * benchmark numbers can be compared across commits.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class SyntheticSky {
+
+	/**
+	 * Sky background level
+	 */
+	public int background = 12;
+	/**
+	 * Gaussian read noise
+	 */
+	public double noiseSigma = 3;
+	/**
+	 * Star image size (gaussian sigma, pixels)
+	 */
+	public double starSigma = 1.2;
+	/**
+	 * Time between frames
+	 */
+	public long intervalMs = 30_000;
+	/**
+	 * Sidereal rate, radians per second
+	 */
+	public double omega = 7.292e-5;
+	/**
+	 * Celestial pole, above the top of the frame by default
+	 */
+	public double poleX, poleY;
+
+	private final int width, height;
+	private final double[] starX, starY, starPeak;
+	private final int[] hotPixels;
+	private final long seed;
+
+	/**
+	 * @param width
+	 * @param height
+	 * @param starCount
+	 * @param hotPixelCount
+	 *          stuck-bright pixels, the same in every frame
+	 * @param seed
+	 */
+	public SyntheticSky(final int width, final int height, final int starCount, final int hotPixelCount,
+			final long seed) {
+		this.width = width;
+		this.height = height;
+		this.seed = seed;
+		this.poleX = width / 2.0;
+		this.poleY = -height;
+		final Random random = new Random(seed);
+		starX = new double[starCount];
+		starY = new double[starCount];
+		starPeak = new double[starCount];
+		for (int i = 0; i < starCount; i++) {
+			starX[i] = random.nextDouble() * width;
+			starY[i] = random.nextDouble() * height;
+			// Many faint, few bright
+			starPeak[i] = Math.min(255, 20 + 235 * Math.pow(random.nextDouble(), 4));
+		}
+		hotPixels = new int[hotPixelCount];
+		for (int i = 0; i < hotPixels.length; i++) {
+			hotPixels[i] = random.nextInt(width * height);
+		}
+	}
+
+	/**
+	 * @param index
+	 * @return TYPE_BYTE_GRAY image
+	 */
+	public BufferedImage getGray(final int index) {
+		final Random random = new Random(seed * 31 + index);
+		final float[] lum = new float[width * height];
+		for (int i = 0; i < lum.length; i++) {
+			lum[i] = (float) (background + noiseSigma * random.nextGaussian());
+		}
+
+		final double angle = omega * index * intervalMs / 1_000.0;
+		final double cos = Math.cos(angle), sin = Math.sin(angle);
+		final int radius = (int) Math.ceil(3 * starSigma);
+		for (int s = 0; s < starX.length; s++) {
+			final double dx = starX[s] - poleX, dy = starY[s] - poleY;
+			final double x = poleX + cos * dx - sin * dy, y = poleY + sin * dx + cos * dy;
+			for (int py = (int) y - radius; py <= (int) y + radius; py++) {
+				for (int px = (int) x - radius; px <= (int) x + radius; px++) {
+					if (px < 0 || py < 0 || px >= width || py >= height) {
+						continue;
+					}
+					final double distSq = (px - x) * (px - x) + (py - y) * (py - y);
+					lum[py * width + px] += starPeak[s] * Math.exp(-distSq / (2 * starSigma * starSigma));
+				}
+			}
+		}
+
+		final BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		final byte[] data = ((DataBufferByte) result.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < lum.length; i++) {
+			data[i] = (byte) Math.max(0, Math.min(255, Math.round(lum[i])));
+		}
+		for (final int hot : hotPixels) {
+			data[hot] = (byte) 250;
+		}
+		return result;
+	}
+
+	/**
+	 * A Frame for the index, as if loaded from the DB. The path is where write() puts it.
+	 *
+	 * @param dir
+	 * @param index
+	 * @return
+	 */
+	public Frame getFrame(final File dir, final int index) {
+		final Map<String, Object> row = new HashMap<>();
+		row.put("ts", index * intervalMs);
+		row.put("path", getFile(dir, index).getPath());
+		return new Frame(row);
+	}
+
+	private File getFile(final File dir, final int index) {
+		return new File(dir, String.format("synthetic_%05d.jpg", index));
+	}
+
+	/**
+	 * Writes frames as JPEGs (without EXIF, so use getFrame rather than new Frame(File))
+	 *
+	 * @param dir
+	 * @param frameCount
+	 */
+	public void write(final File dir, final int frameCount) {
+		dir.mkdirs();
+		for (int index = 0; index < frameCount; index++) {
+			try {
+				ImageIO.write(getGray(index), "jpg", getFile(dir, index));
+			} catch (final IOException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package info.benjaminhill.vst;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import info.benjaminhill.util.DBLite;
+
+/**
+ * Every stage of the pipeline on a SyntheticSky night. Run from a scratch directory: stacking writes to lum/. The
+ * persistence benchmark writes to a temp table that hides the working directory's pixel table and is gone when the
+ * fork exits.
+ *
+ * <pre>
+ * mvn -Pjmh package
+ * java -jar target/benchmarks.jar -rf json -rff jmh-$(git rev-parse --short HEAD).json
+ * </pre>
+ *
+ * @author benjaminhill@gmail.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VstBenchmark {
+
+	@Param({ "1500x1000" })
+	public String resolution;
+
+	@Param({ "20" })
+	public int frameCount;
+
+	@Param({ "400" })
+	public int starCount;
+
+	/**
+	 * Linking needs a night long enough to split into time segments
+	 */
+	@Param({ "240" })
+	public int linkFrameCount;
+
+	private BufferedImage gray, color;
+	private File jpeg;
+	private SortedSet<File> jpegs;
+	private SortedSet<Frame> frames, night;
+	private List<Pixel> pixels;
+	/**
+	 * Every persistPixels call writes new rows, never ones the primary key would ignore
+	 */
+	private long nextFrameId = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		final String[] dims = resolution.split("x");
+		final SyntheticSky sky = new SyntheticSky(Integer.parseInt(dims[0]), Integer.parseInt(dims[1]), starCount, 50, 42);
+		gray = sky.getGray(0);
+		color = new BufferedImage(gray.getWidth(), gray.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+		color.getGraphics().drawImage(gray, 0, 0, null);
+
+		final File dir = Files.createTempDirectory("vst-bench").toFile();
+		sky.write(dir, frameCount);
+		jpegs = new TreeSet<>();
+		frames = new TreeSet<>();
+		for (int i = 0; i < frameCount; i++) {
+			final Frame frame = sky.getFrame(dir, i);
+			jpegs.add(new File(frame.getPath()));
+			frame.addPixels(Brightest.getBrightest(sky.getGray(i)));
+			frames.add(frame);
+		}
+		night = new TreeSet<>();
+		for (int i = 0; i < linkFrameCount; i++) {
+			final Frame frame = sky.getFrame(dir, i);
+			frame.addPixels(Brightest.getBrightest(sky.getGray(i)));
+			night.add(frame);
+		}
+		jpeg = jpegs.first();
+		pixels = frames.first().getPixels();
+		Pixel.tempSchema();
+	}
+
+	@TearDown(Level.Iteration)
+	public void clearPixels() {
+		DBLite.DB.update("delete from temp.pixel");
+	}
+
+	@Benchmark
+	public Set<Pixel> detectBuckets() {
+		return Brightest.getBrightest(gray);
+	}
+
+	@Benchmark
+	public Set<Pixel> detectBlobs() {
+		return Blobs.getBlobs(gray);
+	}
+
+	@Benchmark
+	public BufferedImage grayFromColor() {
+		final BufferedImage result = ImageUtils.getGray(color);
+		ImageUtils.recycle(result);
+		return result;
+	}
+
+	@Benchmark
+	public BufferedImage decodeJpegToGray() {
+		final BufferedImage result = ImageUtils.decodeGray(jpeg);
+		ImageUtils.recycle(result);
+		return result;
+	}
+
+	@Benchmark
+	public Stacker.Result stackMedian() {
+		return new Stacker(jpegs, Stacker.DEFAULT_HEAP_BUDGET).stack(0.5);
+	}
+
+	@Benchmark
+	public float[] stackStreaming() {
+		final StreamingStacker.Mean mean = new StreamingStacker.Mean();
+		new StreamingStacker(jpegs, StreamingStacker.Channels.LUM).stack(mean, new StreamingStacker.Max());
+		return mean.getResult();
+	}
+
+	@Benchmark
+	public List<PixelTrail> linkTrails() {
+		return ParallelLinker.link(night);
+	}
+
+	/**
+	 * Baseline for linkTrails: one TrailGrid over the whole night
+	 */
+	@Benchmark
+	public List<PixelTrail> linkTrailsSequential() {
+		final TrailGrid activeTrails = new TrailGrid();
+		final List<PixelTrail> finished = new ArrayList<>();
+		for (final Frame frame : night) {
+			activeTrails.expire(frame.getTs(), finished);
+			for (int i = 0; i < frame.getDetections().size(); i++) {
+				activeTrails.offer(frame, i);
+			}
+		}
+		finished.addAll(activeTrails.drain());
+		return finished;
+	}
+
+	@Benchmark
+	public int persistPixels() {
+		try (final BatchWriter writer = new BatchWriter()) {
+			final long frameId = nextFrameId++;
+			pixels.forEach(pixel -> pixel.save(writer, frameId));
+		}
+		return pixels.size();
+	}
+}
@@ -0,0 +1,529 @@
+package info.benjaminhill.vst;
+
+import java.awt.geom.Point2D;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-frame alignment straight from the trails, instead of a Hugin control point round trip. Every trail is one star
+ * seen in several frames, and all frames see the same rigid sky, so each frame only needs a rotation and a translation
+ * onto a reference frame.
+ * <p>
+ * RIGID solves star positions and frame transforms together as one sparse linear least squares problem, starting
+ * from the fitted SkyRotation, then snaps each frame to the closest rigid transform (2D Procrustes). POLE keeps the
+ * single field rotation about the pole, for a camera that didn't move at all. Either way sightings far off the fit
+ * (mislinked trails, planes) are dropped and the fit repeated: RIGID re-solves, POLE refits the SkyRotation.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class Aligner {
+
+	/**
+	 * How per-frame transforms are constrained
+	 */
+	public enum Model {
+		/**
+		 * Free rotation and translation per frame
+		 */
+		RIGID,
+		/**
+		 * One rotation about the celestial pole, frames differ only by time
+		 */
+		POLE
+	}
+
+	/**
+	 * Maps a frame's pixels onto the reference frame: x' = cos(theta) x - sin(theta) y + tx, y' = sin(theta) x +
+	 * cos(theta) y + ty
+	 */
+	public static class Transform {
+
+		public final double theta, tx, ty;
+		/**
+		 * Inlier sightings behind the fit and their RMS residual in pixels
+		 */
+		public final int points;
+		public final double rms;
+
+		Transform(final double theta, final double tx, final double ty, final int points, final double rms) {
+			this.theta = theta;
+			this.tx = tx;
+			this.ty = ty;
+			this.points = points;
+			this.rms = rms;
+		}
+
+		/**
+		 * @param x
+		 * @param y
+		 * @return location in the reference frame
+		 */
+		public Point2D.Double apply(final double x, final double y) {
+			final double cos = Math.cos(theta), sin = Math.sin(theta);
+			return new Point2D.Double(cos * x - sin * y + tx, sin * x + cos * y + ty);
+		}
+
+		/**
+		 * JSON compatible
+		 *
+		 * @return
+		 */
+		@Override
+		public String toString() {
+			return "{theta:" + theta + ", tx:" + tx + ", ty:" + ty + ", points:" + points + ", rms:" + rms + "}";
+		}
+	}
+
+	/**
+	 * Trails shorter than this don't constrain anything
+	 */
+	private static final int MIN_TRAIL_POINTS = 3;
+	/**
+	 * A frame needs this many inlier sightings to get a transform
+	 */
+	private static final int MIN_FRAME_POINTS = 3;
+	private static final int MAX_ITERATIONS = 1_000;
+	/**
+	 * Stop iterating when the gradient has shrunk by this much
+	 */
+	private static final double CONVERGED = 1e-12;
+	private static final int REJECTION_ROUNDS = 3;
+	/**
+	 * Sightings further than this many median residuals from the fit are outliers
+	 */
+	private static final double REJECTION_FACTOR = 4;
+	/**
+	 * Don't reject below this, sub-pixel residuals are just centroid noise
+	 */
+	private static final double MIN_REJECTION_PX = 0.5;
+
+	private static final Logger LOG = Logger.getLogger(Aligner.class.getName());
+
+	/**
+	 * @param trails
+	 * @param model
+	 * @return transform per frame, frames without enough sightings are left out
+	 */
+	public static SortedMap<Frame, Transform> align(final List<PixelTrail> trails, final Model model) {
+		final long start = System.nanoTime();
+		final List<PixelTrail> used = new ArrayList<>();
+		final TreeSet<Frame> frameSet = new TreeSet<>();
+		for (final PixelTrail trail : trails) {
+			if (trail.size() >= MIN_TRAIL_POINTS) {
+				used.add(trail);
+				frameSet.addAll(trail.getFrames());
+			}
+		}
+		final List<Frame> frames = new ArrayList<>(frameSet);
+		final Map<Frame, Integer> frameIndex = new HashMap<>();
+		for (int f = 0; f < frames.size(); f++) {
+			frameIndex.put(frames.get(f), f);
+		}
+
+		// Sightings as flat arrays
+		int count = 0;
+		for (final PixelTrail trail : used) {
+			count += trail.size();
+		}
+		final int[] obsFrame = new int[count], obsStar = new int[count];
+		final double[] obsX = new double[count], obsY = new double[count];
+		final boolean[] inlier = new boolean[count];
+		final int[] framePoints = new int[frames.size()];
+		int i = 0;
+		for (int s = 0; s < used.size(); s++) {
+			final PixelTrail trail = used.get(s);
+			for (int t = 0; t < trail.size(); t++) {
+				final Pixel pixel = trail.getPixel(t);
+				obsFrame[i] = frameIndex.get(trail.getFrame(t));
+				obsStar[i] = s;
+				obsX[i] = pixel.cx;
+				obsY[i] = pixel.cy;
+				inlier[i] = true;
+				framePoints[obsFrame[i]]++;
+				i++;
+			}
+		}
+
+		// Reference is the first frame with enough sightings, its transform stays the identity
+		int reference = 0;
+		while (reference < frames.size() && framePoints[reference] < MIN_FRAME_POINTS) {
+			reference++;
+		}
+		if (reference == frames.size()) {
+			LOG.warning("Not enough trail sightings to align");
+			return new TreeMap<>();
+		}
+
+		// Start from the field rotation, rebased on the reference frame
+		final double[] theta = new double[frames.size()], tx = new double[frames.size()], ty = new double[frames
+				.size()];
+		final long refTs = frames.get(reference).getTs();
+		setFromRotation(SkyRotation.fit(used), frames, refTs, theta, tx, ty);
+
+		final double[] starX = new double[used.size()], starY = new double[used.size()];
+		final boolean[] solved = new boolean[frames.size()];
+		for (int round = 0; round <= REJECTION_ROUNDS; round++) {
+			Arrays.fill(solved, true);
+			if (model == Model.POLE && round > 0) {
+				// Only the inliers' motion
+				setFromRotation(SkyRotation.fit(used, inlier), frames, refTs, theta, tx, ty);
+			}
+			updateStars(obsFrame, obsStar, obsX, obsY, inlier, theta, tx, ty, solved, starX, starY);
+			if (model == Model.RIGID) {
+				final int iterations = solveLinear(obsFrame, obsStar, obsX, obsY, inlier, reference, theta, tx, ty, starX,
+						starY);
+				LOG.log(Level.FINE, "Alignment round {0} took {1} iterations", new Object[] { round, iterations });
+				// Snap the similarity transforms back to rigid ones
+				updateFrames(obsFrame, obsStar, obsX, obsY, inlier, starX, starY, reference, theta, tx, ty, solved);
+				updateStars(obsFrame, obsStar, obsX, obsY, inlier, theta, tx, ty, solved, starX, starY);
+			}
+			if (round == REJECTION_ROUNDS) {
+				break;
+			}
+
+			// Reject sightings far off the fit
+			final double[] residuals = residuals(obsFrame, obsStar, obsX, obsY, theta, tx, ty, starX, starY);
+			final double[] inlierResiduals = new double[count];
+			int inliers = 0;
+			for (int o = 0; o < count; o++) {
+				if (inlier[o]) {
+					inlierResiduals[inliers++] = residuals[o];
+				}
+			}
+			if (inliers == 0) {
+				break;
+			}
+			final double[] sorted = Arrays.copyOf(inlierResiduals, inliers);
+			Arrays.sort(sorted);
+			final double limit = Math.max(MIN_REJECTION_PX, REJECTION_FACTOR * sorted[inliers / 2]);
+			int rejected = 0;
+			for (int o = 0; o < count; o++) {
+				if (inlier[o] && residuals[o] > limit) {
+					inlier[o] = false;
+					rejected++;
+				}
+			}
+			LOG.log(Level.FINE, "Alignment round {0} rejected {1} sightings over {2}px", new Object[] { round, rejected,
+					limit });
+			if (rejected == 0) {
+				break;
+			}
+		}
+
+		// Per frame quality
+		final double[] residuals = residuals(obsFrame, obsStar, obsX, obsY, theta, tx, ty, starX, starY);
+		final double[] sumSq = new double[frames.size()];
+		final int[] inliersPerFrame = new int[frames.size()];
+		int totalInliers = 0;
+		for (int o = 0; o < count; o++) {
+			if (inlier[o]) {
+				sumSq[obsFrame[o]] += residuals[o] * residuals[o];
+				inliersPerFrame[obsFrame[o]]++;
+				totalInliers++;
+			}
+		}
+		final SortedMap<Frame, Transform> result = new TreeMap<>();
+		for (int f = 0; f < frames.size(); f++) {
+			if (solved[f] && inliersPerFrame[f] >= MIN_FRAME_POINTS) {
+				result.put(frames.get(f), new Transform(theta[f], tx[f], ty[f], inliersPerFrame[f], Math.sqrt(sumSq[f]
+						/ inliersPerFrame[f])));
+			}
+		}
+		Metrics.time(Metrics.Stage.ALIGN, start);
+		LOG.log(Level.INFO, "Aligned {0} of {1} frames to {2} from {3} trails, {4} of {5} sightings kept", new Object[] {
+				result.size(), frames.size(), frames.get(reference).getPath(), used.size(), totalInliers, count });
+		return result;
+	}
+
+	/**
+	 * Per frame transforms that follow the field rotation
+	 */
+	private static void setFromRotation(final SkyRotation motion, final List<Frame> frames, final long refTs,
+			final double[] theta, final double[] tx, final double[] ty) {
+		for (int f = 0; f < frames.size(); f++) {
+			// Forward to the reference time: derotate from ts, then rotate back out from refTs
+			final double[] a = toReference(motion, 0, 0, frames.get(f).getTs(), refTs);
+			final double[] b = toReference(motion, 1, 0, frames.get(f).getTs(), refTs);
+			theta[f] = Math.atan2(b[1] - a[1], b[0] - a[0]);
+			tx[f] = a[0];
+			ty[f] = a[1];
+		}
+	}
+
+	/**
+	 * Position at refTs of something seen at (x, y) at ts
+	 */
+	private static double[] toReference(final SkyRotation motion, final double x, final double y, final long ts,
+			final long refTs) {
+		final Point2D.Double derotated = motion.derotate(x, y, ts);
+		final Point2D.Double origin = motion.derotate(0, 0, refTs);
+		final Point2D.Double unitX = motion.derotate(1, 0, refTs);
+		// Invert the reference frame's derotation, which is itself a rigid motion
+		final double angle = Math.atan2(unitX.y - origin.y, unitX.x - origin.x);
+		final double cos = Math.cos(-angle), sin = Math.sin(-angle);
+		final double dx = derotated.x - origin.x, dy = derotated.y - origin.y;
+		return new double[] { cos * dx - sin * dy, sin * dx + cos * dy };
+	}
+
+	/**
+	 * Each star is the mean of its inlier sightings in solved frames
+	 */
+	private static void updateStars(final int[] obsFrame, final int[] obsStar, final double[] obsX, final double[] obsY,
+			final boolean[] inlier, final double[] theta, final double[] tx, final double[] ty, final boolean[] solved,
+			final double[] starX, final double[] starY) {
+		final int[] seen = new int[starX.length];
+		Arrays.fill(starX, 0);
+		Arrays.fill(starY, 0);
+		for (int o = 0; o < obsFrame.length; o++) {
+			final int f = obsFrame[o];
+			if (!inlier[o] || !solved[f]) {
+				continue;
+			}
+			final double cos = Math.cos(theta[f]), sin = Math.sin(theta[f]);
+			starX[obsStar[o]] += cos * obsX[o] - sin * obsY[o] + tx[f];
+			starY[obsStar[o]] += sin * obsX[o] + cos * obsY[o] + ty[f];
+			seen[obsStar[o]]++;
+		}
+		for (int s = 0; s < starX.length; s++) {
+			if (seen[s] > 0) {
+				starX[s] /= seen[s];
+				starY[s] /= seen[s];
+			} else {
+				starX[s] = Double.NaN;
+				starY[s] = Double.NaN;
+			}
+		}
+	}
+
+	/**
+	 * Closed form rigid fit of every frame's sightings onto the current stars
+	 */
+	private static void updateFrames(final int[] obsFrame, final int[] obsStar, final double[] obsX,
+			final double[] obsY, final boolean[] inlier, final double[] starX, final double[] starY, final int reference,
+			final double[] theta, final double[] tx, final double[] ty, final boolean[] solved) {
+		final int frameCount = theta.length;
+		// Per frame sums: n, px, py, sx, sy, then the cross terms
+		final double[][] sums = new double[frameCount][9];
+		for (int o = 0; o < obsFrame.length; o++) {
+			final int s = obsStar[o];
+			if (!inlier[o] || Double.isNaN(starX[s])) {
+				continue;
+			}
+			final double[] sum = sums[obsFrame[o]];
+			final double px = obsX[o], py = obsY[o], sx = starX[s], sy = starY[s];
+			sum[0]++;
+			sum[1] += px;
+			sum[2] += py;
+			sum[3] += sx;
+			sum[4] += sy;
+			sum[5] += px * sx + py * sy;
+			sum[6] += px * sy - py * sx;
+			sum[7] += px * px + py * py;
+		}
+		for (int f = 0; f < frameCount; f++) {
+			final double[] sum = sums[f];
+			if (f == reference) {
+				continue;
+			}
+			if (sum[0] < MIN_FRAME_POINTS) {
+				solved[f] = false;
+				continue;
+			}
+			final double n = sum[0];
+			final double pxm = sum[1] / n, pym = sum[2] / n, sxm = sum[3] / n, sym = sum[4] / n;
+			// Centered dot and cross products
+			final double dot = sum[5] - n * (pxm * sxm + pym * sym);
+			final double cross = sum[6] - n * (pxm * sym - pym * sxm);
+			final double newTheta = Math.atan2(cross, dot);
+			final double cos = Math.cos(newTheta), sin = Math.sin(newTheta);
+			final double newTx = sxm - (cos * pxm - sin * pym);
+			final double newTy = sym - (sin * pxm + cos * pym);
+			theta[f] = newTheta;
+			tx[f] = newTx;
+			ty[f] = newTy;
+			solved[f] = true;
+		}
+	}
+
+	/**
+	 * With a = cos(theta) and b = sin(theta) as separate unknowns, "sighting mapped by its frame lands on its star" is
+	 * linear in everything at once: a px - b py + tx - sx = 0 and b px + a py + ty - sy = 0, with the reference frame
+	 * fixed to a = 1. Solved for all frames and stars together by conjugate gradients on the normal equations (CGLS),
+	 * which converges in far fewer passes than alternating between frames and stars. Starts from, and writes back to,
+	 * the current transforms and stars.
+	 *
+	 * @return iterations used
+	 */
+	private static int solveLinear(final int[] obsFrame, final int[] obsStar, final double[] obsX, final double[] obsY,
+			final boolean[] inlier, final int reference, final double[] theta, final double[] tx, final double[] ty,
+			final double[] starX, final double[] starY) {
+		final int frameCount = theta.length, starOffset = 4 * frameCount;
+		final double[] x = new double[starOffset + 2 * starX.length];
+		for (int f = 0; f < frameCount; f++) {
+			x[4 * f] = f == reference ? 0 : Math.cos(theta[f]);
+			x[4 * f + 1] = f == reference ? 0 : Math.sin(theta[f]);
+			x[4 * f + 2] = f == reference ? 0 : tx[f];
+			x[4 * f + 3] = f == reference ? 0 : ty[f];
+		}
+		for (int s = 0; s < starX.length; s++) {
+			x[starOffset + 2 * s] = Double.isNaN(starX[s]) ? 0 : starX[s];
+			x[starOffset + 2 * s + 1] = Double.isNaN(starY[s]) ? 0 : starY[s];
+		}
+
+		// r = rhs - A x, only the reference frame's sightings are constants
+		final double[] r = new double[2 * obsFrame.length];
+		multiply(obsFrame, obsStar, obsX, obsY, inlier, reference, starOffset, x, r);
+		for (int o = 0; o < obsFrame.length; o++) {
+			final boolean known = inlier[o] && obsFrame[o] == reference;
+			r[2 * o] = (known ? -obsX[o] : 0) - r[2 * o];
+			r[2 * o + 1] = (known ? -obsY[o] : 0) - r[2 * o + 1];
+		}
+		final double[] s = new double[x.length];
+		multiplyTransposed(obsFrame, obsStar, obsX, obsY, inlier, reference, starOffset, r, s);
+		final double[] p = s.clone();
+		final double[] q = new double[r.length];
+		double gamma = dot(s, s);
+		final double gamma0 = gamma;
+		int iteration = 0;
+		while (iteration < MAX_ITERATIONS && gamma > CONVERGED * gamma0 && gamma > 0) {
+			iteration++;
+			multiply(obsFrame, obsStar, obsX, obsY, inlier, reference, starOffset, p, q);
+			final double qq = dot(q, q);
+			if (qq == 0) {
+				break;
+			}
+			final double alpha = gamma / qq;
+			for (int i = 0; i < x.length; i++) {
+				x[i] += alpha * p[i];
+			}
+			for (int i = 0; i < r.length; i++) {
+				r[i] -= alpha * q[i];
+			}
+			multiplyTransposed(obsFrame, obsStar, obsX, obsY, inlier, reference, starOffset, r, s);
+			final double nextGamma = dot(s, s);
+			final double beta = nextGamma / gamma;
+			for (int i = 0; i < p.length; i++) {
+				p[i] = s[i] + beta * p[i];
+			}
+			gamma = nextGamma;
+		}
+
+		for (int f = 0; f < frameCount; f++) {
+			if (f != reference) {
+				theta[f] = Math.atan2(x[4 * f + 1], x[4 * f]);
+				tx[f] = x[4 * f + 2];
+				ty[f] = x[4 * f + 3];
+			}
+		}
+		for (int st = 0; st < starX.length; st++) {
+			if (!Double.isNaN(starX[st])) {
+				starX[st] = x[starOffset + 2 * st];
+				starY[st] = x[starOffset + 2 * st + 1];
+			}
+		}
+		return iteration;
+	}
+
+	/**
+	 * out = A v, two rows per sighting
+	 */
+	private static void multiply(final int[] obsFrame, final int[] obsStar, final double[] obsX, final double[] obsY,
+			final boolean[] inlier, final int reference, final int starOffset, final double[] v, final double[] out) {
+		for (int o = 0; o < obsFrame.length; o++) {
+			if (!inlier[o]) {
+				out[2 * o] = 0;
+				out[2 * o + 1] = 0;
+				continue;
+			}
+			final int f = 4 * obsFrame[o], s = starOffset + 2 * obsStar[o];
+			double row1 = -v[s], row2 = -v[s + 1];
+			if (obsFrame[o] != reference) {
+				row1 += v[f] * obsX[o] - v[f + 1] * obsY[o] + v[f + 2];
+				row2 += v[f + 1] * obsX[o] + v[f] * obsY[o] + v[f + 3];
+			}
+			out[2 * o] = row1;
+			out[2 * o + 1] = row2;
+		}
+	}
+
+	/**
+	 * out = A' u
+	 */
+	private static void multiplyTransposed(final int[] obsFrame, final int[] obsStar, final double[] obsX,
+			final double[] obsY, final boolean[] inlier, final int reference, final int starOffset, final double[] u,
+			final double[] out) {
+		Arrays.fill(out, 0);
+		for (int o = 0; o < obsFrame.length; o++) {
+			if (!inlier[o]) {
+				continue;
+			}
+			final double u1 = u[2 * o], u2 = u[2 * o + 1];
+			final int f = 4 * obsFrame[o], s = starOffset + 2 * obsStar[o];
+			out[s] -= u1;
+			out[s + 1] -= u2;
+			if (obsFrame[o] != reference) {
+				out[f] += u1 * obsX[o] + u2 * obsY[o];
+				out[f + 1] += u2 * obsX[o] - u1 * obsY[o];
+				out[f + 2] += u1;
+				out[f + 3] += u2;
+			}
+		}
+	}
+
+	private static double dot(final double[] a, final double[] b) {
+		double sum = 0;
+		for (int i = 0; i < a.length; i++) {
+			sum += a[i] * b[i];
+		}
+		return sum;
+	}
+
+	private static double[] residuals(final int[] obsFrame, final int[] obsStar, final double[] obsX,
+			final double[] obsY, final double[] theta, final double[] tx, final double[] ty, final double[] starX,
+			final double[] starY) {
+		final double[] residuals = new double[obsFrame.length];
+		for (int o = 0; o < obsFrame.length; o++) {
+			final int f = obsFrame[o], s = obsStar[o];
+			if (Double.isNaN(starX[s])) {
+				residuals[o] = Double.POSITIVE_INFINITY;
+				continue;
+			}
+			final double cos = Math.cos(theta[f]), sin = Math.sin(theta[f]);
+			residuals[o] = Math.hypot(cos * obsX[o] - sin * obsY[o] + tx[f] - starX[s], sin * obsX[o] + cos * obsY[o]
+					+ ty[f] - starY[s]);
+		}
+		return residuals;
+	}
+
+	/**
+	 * Tab separated, one line per frame, angles in degrees
+	 *
+	 * @param transforms
+	 * @param path
+	 */
+	public static void write(final SortedMap<Frame, Transform> transforms, final Path path) {
+		try (final PrintWriter tsv = new PrintWriter(path.toFile())) {
+			tsv.format("%s\t%s\t%s\t%s\t%s\t%s\t%s%n", "FRAME_TS", "PATH", "ROTATION_DEG", "TX", "TY", "POINTS", "RMS_PX");
+			transforms.forEach((frame, t) -> tsv.format("%d\t%s\t%.6f\t%.3f\t%.3f\t%d\t%.3f%n", frame.getTs(), frame
+					.getPath(), Math.toDegrees(t.theta), t.tx, t.ty, t.points, t.rms));
+		} catch (final IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		LOG.log(Level.INFO, "Wrote {0} frame transforms to {1}", new Object[] { transforms.size(), path });
+	}
+
+	private Aligner() {
+		// empty
+	}
+}
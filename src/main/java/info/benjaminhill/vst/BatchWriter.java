@@ -0,0 +1,207 @@
+package info.benjaminhill.vst;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Collections2;
+
+import info.benjaminhill.util.DBLite;
+
+/**
+ * Single writer thread for the DB. Workers queue rows, the writer drains whatever is waiting into one transaction of
+ * multi-row inserts. The queue is bounded so detection can't run arbitrarily far ahead of the disk. Deletes go through
+ * the same queue, so they run in order with the rows around them instead of in a transaction of their own.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class BatchWriter implements AutoCloseable {
+
+	/**
+	 * SQLite's default limit on ? parameters per statement
+	 */
+	private static final int MAX_PARAMS = 999;
+	private static final int MAX_ROWS_PER_TRANSACTION = 50_000;
+	private static final int QUEUE_CAPACITY = 200_000;
+
+	private static final Logger LOG = Logger.getLogger(BatchWriter.class.getName());
+
+	private static final Row POISON = new Row(null, null, false);
+
+	private static class Row {
+
+		final String sql;
+		final Object[] values;
+		/**
+		 * An insert prefix that takes more rows of VALUES, otherwise a whole statement
+		 */
+		final boolean insert;
+
+		Row(final String sql, final Object[] values, final boolean insert) {
+			this.sql = sql;
+			this.values = values;
+			this.insert = insert;
+		}
+	}
+
+	private final BlockingQueue<Row> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+	private final Thread writer;
+	private volatile RuntimeException failure = null;
+	private long rowsWritten = 0;
+
+	/**
+	 * Starts the writer thread
+	 */
+	public BatchWriter() {
+		writer = new Thread(this::drain, "BatchWriter");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Waits for every queued row to be committed
+	 */
+	@Override
+	public void close() {
+		try {
+			queue.put(POISON);
+			writer.join();
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		}
+		LOG.log(Level.INFO, "Rows written:{0}", rowsWritten);
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void drain() {
+		final List<Row> batch = new ArrayList<>();
+		try {
+			while (true) {
+				batch.add(queue.take());
+				queue.drainTo(batch, MAX_ROWS_PER_TRANSACTION - 1);
+				final boolean done = batch.remove(POISON);
+				if (!batch.isEmpty()) {
+					write(batch);
+				}
+				batch.clear();
+				if (done) {
+					return;
+				}
+			}
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (final RuntimeException ex) {
+			LOG.log(Level.SEVERE, "Writer failed", ex);
+			failure = ex;
+			// Don't leave workers blocked on a full queue
+			queue.clear();
+		}
+	}
+
+	/**
+	 * Queue a row for "insert OR IGNORE". Blocks when the writer is too far behind.
+	 *
+	 * @param table
+	 * @param columns
+	 * @param values
+	 *          one per column
+	 */
+	public void insert(final String table, final List<String> columns, final Object... values) {
+		queue("insert OR IGNORE", table, columns, values);
+	}
+
+	/**
+	 * Queue a row for "insert OR REPLACE", for rows that are updated in place
+	 *
+	 * @param table
+	 * @param columns
+	 * @param values
+	 *          one per column
+	 */
+	public void replace(final String table, final List<String> columns, final Object... values) {
+		queue("insert OR REPLACE", table, columns, values);
+	}
+
+	/**
+	 * Queue a "delete from table where column = value", run in order with the queued rows
+	 *
+	 * @param table
+	 * @param column
+	 * @param value
+	 */
+	public void delete(final String table, final String column, final Object value) {
+		put(new Row("delete from `" + table + "` where `" + column + "` = ?", new Object[] { value }, false));
+	}
+
+	private void queue(final String verb, final String table, final List<String> columns, final Object... values) {
+		assert columns.size() == values.length;
+		put(new Row(verb + " into `" + table + "` (" + Joiner.on(",").join(Collections2.transform(columns, col -> "`" + col
+				+ "`")) + ") VALUES ", values, true));
+	}
+
+	private void put(final Row row) {
+		if (failure != null) {
+			throw failure;
+		}
+		try {
+			queue.put(row);
+			Metrics.gauge(Metrics.Gauge.WRITE_QUEUE, queue.size());
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * One transaction, consecutive rows for the same table are combined into multi-row inserts, deletes run on their own
+	 */
+	private void write(final List<Row> batch) {
+		final long startNs = System.nanoTime();
+		DBLite.DB.update("BEGIN TRANSACTION");
+		try {
+			int start = 0;
+			while (start < batch.size()) {
+				final Row first = batch.get(start);
+				if (!first.insert) {
+					DBLite.DB.update(first.sql, first.values);
+					start++;
+					continue;
+				}
+				final int maxRows = Math.max(1, MAX_PARAMS / first.values.length);
+				int end = start + 1;
+				while (end < batch.size() && end - start < maxRows && batch.get(end).sql.equals(first.sql)) {
+					end++;
+				}
+
+				final String placeholders = "(" + Joiner.on(",").join(Collections2.transform(Arrays.asList(first.values),
+						v -> "?")) + ")";
+				final StringBuilder sql = new StringBuilder(first.sql);
+				final List<Object> params = new ArrayList<>((end - start) * first.values.length);
+				for (int i = start; i < end; i++) {
+					if (i > start) {
+						sql.append(',');
+					}
+					sql.append(placeholders);
+					params.addAll(Arrays.asList(batch.get(i).values));
+				}
+				DBLite.DB.update(sql.toString(), params.toArray());
+				start = end;
+			}
+			DBLite.DB.update("COMMIT");
+			rowsWritten += batch.size();
+			Metrics.add(Metrics.Count.ROWS, batch.size());
+			Metrics.time(Metrics.Stage.DB_WRITE, startNs);
+		} catch (final RuntimeException ex) {
+			DBLite.DB.update("ROLLBACK");
+			throw ex;
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package info.benjaminhill.vst;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Threshold plus connected components: one centroid per star instead of one maximum per bucket.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class Blobs {
+
+	/**
+	 * Must be at least this bright above the background to be part of a star
+	 */
+	private static final int MINIMUM_LUM = 5;
+	/**
+	 * How many noise widths above the background a pixel must be
+	 */
+	private static final double THRESHOLD_SIGMA = 4;
+	/**
+	 * Smaller blobs are noise or hot pixels
+	 */
+	private static final int MIN_AREA = 2;
+	/**
+	 * Larger blobs are the moon, a plane, or a tree lit by a car
+	 */
+	private static final int MAX_AREA = 400;
+
+	private static final Logger LOG = Logger.getLogger(Blobs.class.getName());
+
+	/**
+	 * @return every setting that changes which blobs are found
+	 */
+	static String getParams() {
+		return "minLum=" + MINIMUM_LUM + " sigma=" + THRESHOLD_SIGMA + " area=" + MIN_AREA + "-" + MAX_AREA;
+	}
+
+	/**
+	 * Background level and threshold from the luminance histogram (median and the 84th percentile as one sigma).
+	 *
+	 * @param pixels
+	 * @return {background, threshold}
+	 */
+	private static int[] getBackgroundAndThreshold(final byte[] pixels) {
+		final int[] histogram = new int[256];
+		for (final byte b : pixels) {
+			histogram[b & 0xFF]++;
+		}
+		final long medianRank = pixels.length / 2, sigmaRank = (long) (pixels.length * 0.8413);
+		int median = -1, sigmaPoint = -1;
+		long seen = 0;
+		for (int lum = 0; lum < histogram.length; lum++) {
+			seen += histogram[lum];
+			if (median < 0 && seen > medianRank) {
+				median = lum;
+			}
+			if (sigmaPoint < 0 && seen > sigmaRank) {
+				sigmaPoint = lum;
+				break;
+			}
+		}
+		final double sigma = Math.max(1, sigmaPoint - median);
+		final int threshold = Math.min(255, (int) Math.ceil(median + Math.max(MINIMUM_LUM, THRESHOLD_SIGMA * sigma)));
+		return new int[] { median, threshold };
+	}
+
+	/**
+	 * One Pixel per star: location is the flux-weighted centroid, lum is the peak.
+	 *
+	 * @param gray
+	 *          TYPE_BYTE_GRAY image
+	 * @return
+	 */
+	public static Set<Pixel> getBlobs(final BufferedImage gray) {
+		final int width = gray.getWidth(), height = gray.getHeight();
+		final byte[] pixels = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
+
+		final int[] backgroundAndThreshold = getBackgroundAndThreshold(pixels);
+		final int background = backgroundAndThreshold[0], threshold = backgroundAndThreshold[1];
+
+		final boolean[] visited = new boolean[pixels.length];
+		int[] stack = new int[1024];
+		final Set<Pixel> result = new HashSet<>();
+		int rejected = 0;
+
+		for (int start = 0; start < pixels.length; start++) {
+			if (visited[start] || (pixels[start] & 0xFF) < threshold) {
+				continue;
+			}
+			// Flood fill (8-connected) from this seed, accumulating the moments as we go
+			long flux = 0, sumX = 0, sumY = 0;
+			int area = 0, peak = 0, top = 0;
+			stack[top++] = start;
+			visited[start] = true;
+			while (top > 0) {
+				final int idx = stack[--top];
+				final int x = idx % width, y = idx / width;
+				final int lum = pixels[idx] & 0xFF;
+				final int weight = lum - background;
+				flux += weight;
+				sumX += (long) weight * x;
+				sumY += (long) weight * y;
+				area++;
+				peak = Math.max(peak, lum);
+
+				for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++) {
+					for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++) {
+						final int nIdx = ny * width + nx;
+						if (!visited[nIdx] && (pixels[nIdx] & 0xFF) >= threshold) {
+							visited[nIdx] = true;
+							if (top == stack.length) {
+								stack = Arrays.copyOf(stack, stack.length * 2);
+							}
+							stack[top++] = nIdx;
+						}
+					}
+				}
+			}
+
+			if (area < MIN_AREA || area > MAX_AREA) {
+				rejected++;
+				continue;
+			}
+			result.add(new Pixel((double) sumX / flux, (double) sumY / flux, peak, (int) flux, area));
+		}
+		LOG.log(Level.FINE, "Background:{0} threshold:{1} blobs:{2} rejected:{3}", new Object[] { background, threshold,
+				result.size(), rejected });
+		return result;
+	}
+
+	private Blobs() {
+		// empty
+	}
+}
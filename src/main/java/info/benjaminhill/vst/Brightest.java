@@ -3,28 +3,60 @@ package info.benjaminhill.vst;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.io.File;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-
-import com.google.common.collect.ImmutableSet;
 
 /**
  * @author benhill
  */
 public class Brightest {
 
+	/**
+	 * How candidate stars are found in a frame
+	 */
+	public enum Mode {
+		/**
+		 * Brightest pixel per bucket, at several bucket sizes
+		 */
+		BUCKETS,
+		/**
+		 * One centroid per connected blob above the background, see {@link Blobs}
+		 */
+		BLOBS
+	}
+
 	/**
 	 * Must be at least this bright to be considered
 	 */
 	private static final int MINIMUM_LUM = 5;
-	private static final Set<Integer> BUCKETS = ImmutableSet.of(13, 17, 71, 113);
+	private static final int[] BUCKETS = { 13, 17, 71, 113 };
+
+	/**
+	 * Bump when detection changes in a way the settings below don't show, so reruns detect again
+	 */
+	private static final int VERSION = 1;
 
 	private static final Logger LOG = Logger.getLogger(Brightest.class.getName());
 
+	/**
+	 * Everything that affects what detection finds, recorded with each frame's pixels
+	 *
+	 * @param mode
+	 * @return
+	 */
+	public static String getParams(final Mode mode) {
+		final String common = "v" + VERSION + " mode=" + mode;
+		switch (mode) {
+		case BLOBS:
+			return common + " " + Blobs.getParams();
+		case BUCKETS:
+		default:
+			return common + " minLum=" + MINIMUM_LUM + " buckets=" + Arrays.toString(BUCKETS);
+		}
+	}
+
 	/**
 	 * All bright pixels using two prime number bucket sizes. Overkill? Maybe.
 	 *
@@ -32,47 +64,113 @@ public class Brightest {
 	 * @return
 	 */
 	public static Set<Pixel> getBrightest(final String img) {
+		return getBrightest(img, Mode.BUCKETS);
+	}
 
-		final BufferedImage gray = ImageUtils.getGray(new File(img));
+	/**
+	 * @param img
+	 * @param mode
+	 * @return
+	 */
+	public static Set<Pixel> getBrightest(final String img, final Mode mode) {
+		return getBrightest(ImageUtils.getGray(new File(img)), mode);
+	}
 
-		Set<Pixel> result = new HashSet<>();
-		BUCKETS.stream().forEach((bucketPixelSize) -> {
-			result.addAll(getBrightestPerBucket(bucketPixelSize, gray).values().stream().filter((
-					brightestInBucket) -> (brightestInBucket.lum >= MINIMUM_LUM)).collect(Collectors.toSet()));
-		});
-		return result;
+	/**
+	 * @param gray
+	 *          TYPE_BYTE_GRAY image
+	 * @param mode
+	 * @return
+	 */
+	public static Set<Pixel> getBrightest(final BufferedImage gray, final Mode mode) {
+		final long start = System.nanoTime();
+		try {
+			switch (mode) {
+			case BLOBS:
+				return Blobs.getBlobs(gray);
+			case BUCKETS:
+			default:
+				return getBrightest(gray);
+			}
+		} finally {
+			Metrics.time(Metrics.Stage.DETECT, start);
+		}
 	}
 
 	/**
-	 * For each bucket, find the brightest pixel location
+	 * All bucket sizes are computed in a single pass over the raster. Per row, each bucket's stretch of the row is reduced
+	 * to its maximum (SIMD when available, see Kernels), and only a new best is searched for its position. Per-bucket
+	 * maxima live in primitive arrays, only the survivors become Pixels.
 	 *
-	 * @param imageFile
-	 *          grayscale
+	 * @param gray
+	 *          TYPE_BYTE_GRAY image
 	 * @return
 	 */
-	private static Map<Integer, Pixel> getBrightestPerBucket(final int bucketPixelSize, final BufferedImage gray) {
+	public static Set<Pixel> getBrightest(final BufferedImage gray) {
 		final int width = gray.getWidth(), height = gray.getHeight();
-		final int widthInBuckets = 1 + (width / bucketPixelSize);
-
 		final byte[] pixels = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
 
-		final Map<Integer, Pixel> result = new HashMap<>();
+		final Kernels kernels = Kernels.get();
+		final int scales = BUCKETS.length;
+		// Per scale: the brightest lum so far in each bucket, and where it was
+		final int[] widthInBuckets = new int[scales];
+		final short[][] bestLum = new short[scales][];
+		final int[][] bestIdx = new int[scales][];
+		for (int s = 0; s < scales; s++) {
+			final int bucketPixelSize = BUCKETS[s];
+			widthInBuckets[s] = 1 + (width / bucketPixelSize);
+			final int numBuckets = widthInBuckets[s] * (1 + (height / bucketPixelSize));
+			bestLum[s] = new short[numBuckets];
+			// Anything dimmer than MINIMUM_LUM never claims a bucket
+			Arrays.fill(bestLum[s], (short) (MINIMUM_LUM - 1));
+			bestIdx[s] = new int[numBuckets];
+			Arrays.fill(bestIdx[s], -1);
+		}
 
 		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				final int idx = (y * width) + x;
-				final short lum = pixels[idx];
-
-				final int bucketX = x / bucketPixelSize;
-				final int bucketY = y / bucketPixelSize;
-
-				final int bucketId = bucketY * widthInBuckets + bucketX;
+			final int rowStart = y * width;
+			for (int s = 0; s < scales; s++) {
+				final int rowBase = (y / BUCKETS[s]) * widthInBuckets[s];
+				for (int x0 = 0, bucketId = rowBase; x0 < width; x0 += BUCKETS[s], bucketId++) {
+					final int from = rowStart + x0, to = rowStart + Math.min(width, x0 + BUCKETS[s]);
+					final int lum = kernels.maxUnsigned(pixels, from, to);
+					if (bestLum[s][bucketId] < lum) {
+						// First pixel in scan order wins ties, same as a pixel by pixel scan
+						int idx = from;
+						while ((pixels[idx] & 0xFF) != lum) {
+							idx++;
+						}
+						bestLum[s][bucketId] = (short) lum;
+						bestIdx[s][bucketId] = idx;
+					}
+				}
+			}
+		}
 
-				if (!result.containsKey(bucketId) || result.get(bucketId).lum < lum) {
-					result.put(bucketId, new Pixel(x, y, lum));
+		// Same pixel can win at several scales, only keep it once
+		int survivorCount = 0;
+		for (int s = 0; s < scales; s++) {
+			survivorCount += bestIdx[s].length;
+		}
+		final int[] survivors = new int[survivorCount];
+		int found = 0;
+		for (int s = 0; s < scales; s++) {
+			for (final int idx : bestIdx[s]) {
+				if (idx >= 0) {
+					survivors[found++] = idx;
 				}
 			}
 		}
+		Arrays.sort(survivors, 0, found);
+
+		final Set<Pixel> result = new HashSet<>();
+		for (int i = 0; i < found; i++) {
+			final int idx = survivors[i];
+			if (i > 0 && survivors[i - 1] == idx) {
+				continue;
+			}
+			result.add(new Pixel(idx % width, idx / width, pixels[idx]));
+		}
 		return result;
 	}
 
@@ -0,0 +1,456 @@
+package info.benjaminhill.vst;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntUnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Master dark, master flat and hot pixel mask, applied to a frame's luminance before detection so sensor junk never
+ * becomes a Pixel. Darks (lens cap on, same settings as the lights) go in darks/, flats (evenly lit) in flats/. A dark
+ * only applies to lights from the same camera, ISO and exposure, a flat to lights from the same camera. Masters are
+ * built once per key and cached in calibration/, and rebuilt when the input files change.
+ *
+ * <pre>
+ * int    magic "VSTC"
+ * int    version
+ * int    width
+ * int    height
+ * long   inputs hash
+ * int    has dark, then width * height dark
+ * int    has flat, then width * height flat
+ * int    hot pixel count, then each hot pixel's index
+ * </pre>
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class Calibration {
+
+	private static final int MAGIC = 0x56535443; // VSTC
+	private static final int VERSION = 1;
+	private static final Path DARK_DIR = Paths.get("darks");
+	private static final Path FLAT_DIR = Paths.get("flats");
+	private static final Path CACHE_DIR = Paths.get("calibration");
+	/**
+	 * A dark pixel this many noise widths above the dark's median is hot
+	 */
+	private static final double HOT_SIGMA = 6;
+	/**
+	 * And at least this much above the median
+	 */
+	private static final int HOT_MINIMUM_LUM = 8;
+	/**
+	 * Flat correction never brightens more than this, vignetted corners are mostly noise
+	 */
+	private static final float MAX_GAIN = 4;
+
+	/**
+	 * No calibration frames, leaves images alone
+	 */
+	public static final Calibration NONE = new Calibration(0, 0, null, null, new int[0]);
+
+	private static final Logger LOG = Logger.getLogger(Calibration.class.getName());
+
+	private static final Map<String, Calibration> MASTERS = new ConcurrentHashMap<>();
+	private static Map<String, List<File>> darks = null, flats = null;
+
+	/**
+	 * @param model
+	 *          null if unknown
+	 * @param iso
+	 *          0 if unknown
+	 * @param exposure
+	 *          seconds, 0 if unknown
+	 * @return camera model, ISO and exposure, safe as a file name
+	 */
+	static String getDarkKey(final String model, final int iso, final double exposure) {
+		final String exposureText = exposure > 0 ? new BigDecimal(exposure).round(new MathContext(3)).stripTrailingZeros()
+				.toPlainString() : "unknown";
+		return clean(model == null || model.isEmpty() ? "unknown" : model) + "_iso" + (iso > 0 ? iso : "unknown") + "_"
+				+ clean(exposureText) + "s";
+	}
+
+	/**
+	 * For calibration frames, which aren't in the catalog
+	 *
+	 * @param file
+	 * @return
+	 */
+	static String getDarkKey(final File file) {
+		try {
+			final Catalog.Exif exif = Catalog.readExif(file);
+			return getDarkKey(exif.model, exif.iso, exif.exposure);
+		} catch (final RuntimeException ex) {
+			LOG.log(Level.FINE, "No EXIF in " + file, ex);
+			return getDarkKey(null, 0, 0);
+		}
+	}
+
+	private static String clean(final String part) {
+		return part.replaceAll("[^A-Za-z0-9.]+", "-");
+	}
+
+	/**
+	 * @param darkKey
+	 * @return the camera model part
+	 */
+	private static String getFlatKey(final String darkKey) {
+		return darkKey.substring(0, darkKey.indexOf('_'));
+	}
+
+	/**
+	 * Calibration frames by key, read once
+	 */
+	private static synchronized void index() {
+		if (darks != null) {
+			return;
+		}
+		darks = new HashMap<>();
+		flats = new HashMap<>();
+		if (java.nio.file.Files.isDirectory(DARK_DIR)) {
+			ImageUtils.getImageFiles(DARK_DIR).forEach(file -> darks.computeIfAbsent(getDarkKey(file),
+					key -> new ArrayList<>()).add(file));
+		}
+		if (java.nio.file.Files.isDirectory(FLAT_DIR)) {
+			ImageUtils.getImageFiles(FLAT_DIR).forEach(file -> flats.computeIfAbsent(getFlatKey(getDarkKey(file)),
+					key -> new ArrayList<>()).add(file));
+		}
+		LOG.log(Level.INFO, "Calibration keys, darks:{0} flats:{1}", new Object[] { darks.keySet(), flats.keySet() });
+	}
+
+	/**
+	 * @return changes when any calibration frame or setting does, for Fingerprint
+	 */
+	public static String getParams() {
+		index();
+		final Hasher hasher = Hashing.murmur3_128().newHasher();
+		hasher.putInt(VERSION).putDouble(HOT_SIGMA).putInt(HOT_MINIMUM_LUM).putFloat(MAX_GAIN);
+		putFiles(hasher, darks);
+		putFiles(hasher, flats);
+		return "calibration=" + hasher.hash();
+	}
+
+	private static void putFiles(final Hasher hasher, final Map<String, List<File>> byKey) {
+		final List<String> keys = new ArrayList<>(byKey.keySet());
+		Collections.sort(keys);
+		for (final String key : keys) {
+			hasher.putString(key, StandardCharsets.UTF_8);
+			for (final File file : byKey.get(key)) {
+				hasher.putString(file.getPath(), StandardCharsets.UTF_8).putLong(file.length()).putLong(file.lastModified());
+			}
+		}
+	}
+
+	/**
+	 * The masters that apply to this light frame, built or loaded on first use. Keyed from the model, ISO and exposure
+	 * the catalog already read, the file's EXIF is only read for frames that aren't in the catalog.
+	 *
+	 * @param light
+	 * @return NONE if there are no matching calibration frames
+	 */
+	public static Calibration forFrame(final Frame light) {
+		index();
+		if (darks.isEmpty() && flats.isEmpty()) {
+			return NONE;
+		}
+		final String darkKey = light.getModel() != null ? getDarkKey(light.getModel(), light.getIso(), light
+				.getExposure()) : getDarkKey(new File(light.getPath()));
+		return MASTERS.computeIfAbsent(darkKey, Calibration::loadOrBuild);
+	}
+
+	private static Calibration loadOrBuild(final String darkKey) {
+		final List<File> darkFiles = darks.getOrDefault(darkKey, Collections.emptyList());
+		final List<File> flatFiles = flats.getOrDefault(getFlatKey(darkKey), Collections.emptyList());
+		if (darkFiles.isEmpty() && flatFiles.isEmpty()) {
+			LOG.log(Level.WARNING, "No darks or flats for {0}", darkKey);
+			return NONE;
+		}
+		final Hasher hasher = Hashing.murmur3_128().newHasher().putInt(VERSION).putDouble(HOT_SIGMA).putInt(
+				HOT_MINIMUM_LUM);
+		putFiles(hasher, Collections.singletonMap("dark", darkFiles));
+		putFiles(hasher, Collections.singletonMap("flat", flatFiles));
+		final long inputsHash = hasher.hash().asLong();
+
+		final File cacheFile = CACHE_DIR.resolve(darkKey + ".cal").toFile();
+		final Calibration cached = read(cacheFile, inputsHash);
+		if (cached != null) {
+			LOG.log(Level.INFO, "Calibration {0} from cache, hot pixels:{1}", new Object[] { darkKey, cached.hot.length });
+			return cached;
+		}
+
+		final byte[] dark = darkFiles.isEmpty() ? null : getMaster(darkFiles);
+		final byte[] flat = flatFiles.isEmpty() ? null : getMaster(flatFiles);
+		final Dimension dim = ImageUtils.getDimension((darkFiles.isEmpty() ? flatFiles : darkFiles).get(0));
+		final Calibration built = new Calibration(dim.width, dim.height, dark, flat, dark == null ? new int[0] : getHot(dark));
+		built.write(cacheFile, inputsHash);
+		LOG.log(Level.INFO, "Calibration {0} built from darks:{1} flats:{2}, hot pixels:{3}", new Object[] { darkKey,
+				darkFiles.size(), flatFiles.size(), built.hot.length });
+		return built;
+	}
+
+	/**
+	 * Sigma clipped mean, drops cosmic rays and the odd light leak
+	 */
+	private static byte[] getMaster(final List<File> files) {
+		final StreamingStacker.SigmaClip clip = new StreamingStacker.SigmaClip(StreamingStacker.DEFAULT_KAPPA);
+		new StreamingStacker(files, StreamingStacker.Channels.LUM).stack(clip);
+		final float[] values = clip.getResult();
+		final byte[] master = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			master[i] = (byte) Math.min(255, Math.round(values[i]));
+		}
+		return master;
+	}
+
+	/**
+	 * Pixels far above the dark's median, background and noise from the histogram like Blobs
+	 */
+	private static int[] getHot(final byte[] dark) {
+		final int[] histogram = new int[256];
+		for (final byte b : dark) {
+			histogram[b & 0xFF]++;
+		}
+		final long medianRank = dark.length / 2, sigmaRank = (long) (dark.length * 0.8413);
+		int median = -1, sigmaPoint = -1;
+		long seen = 0;
+		for (int lum = 0; lum < histogram.length && sigmaPoint < 0; lum++) {
+			seen += histogram[lum];
+			if (median < 0 && seen > medianRank) {
+				median = lum;
+			}
+			if (seen > sigmaRank) {
+				sigmaPoint = lum;
+			}
+		}
+		final int threshold = median + (int) Math.ceil(Math.max(HOT_MINIMUM_LUM, HOT_SIGMA * Math.max(1, sigmaPoint
+				- median)));
+		int count = 0;
+		for (final byte b : dark) {
+			if ((b & 0xFF) > threshold) {
+				count++;
+			}
+		}
+		final int[] hot = new int[count];
+		for (int i = 0, h = 0; i < dark.length; i++) {
+			if ((dark[i] & 0xFF) > threshold) {
+				hot[h++] = i;
+			}
+		}
+		return hot;
+	}
+
+	private static Calibration read(final File cacheFile, final long inputsHash) {
+		if (!cacheFile.exists()) {
+			return null;
+		}
+		try (final FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+			final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (mapped.getInt() != MAGIC || mapped.getInt() != VERSION) {
+				return null;
+			}
+			final int width = mapped.getInt(), height = mapped.getInt();
+			if (mapped.getLong() != inputsHash) {
+				return null;
+			}
+			byte[] dark = null, flat = null;
+			if (mapped.getInt() != 0) {
+				dark = new byte[width * height];
+				mapped.get(dark);
+			}
+			if (mapped.getInt() != 0) {
+				flat = new byte[width * height];
+				mapped.get(flat);
+			}
+			final int[] hot = new int[mapped.getInt()];
+			mapped.asIntBuffer().get(hot);
+			return new Calibration(width, height, dark, flat, hot);
+		} catch (final IOException | RuntimeException ex) {
+			LOG.log(Level.WARNING, "Unable to read calibration cache " + cacheFile, ex);
+			return null;
+		}
+	}
+
+	private final int width, height;
+	/**
+	 * Null when there is no master of that kind
+	 */
+	private final byte[] dark;
+	/**
+	 * Per pixel multiplier from the flat, null without one
+	 */
+	private final float[] gain;
+	private final byte[] flat;
+	/**
+	 * Indices of hot pixels, ascending
+	 */
+	private final int[] hot;
+
+	private Calibration(final int width, final int height, final byte[] dark, final byte[] flat, final int[] hot) {
+		this.width = width;
+		this.height = height;
+		this.dark = dark;
+		this.flat = flat;
+		this.hot = hot;
+		if (flat == null) {
+			this.gain = null;
+		} else {
+			long sum = 0;
+			for (final byte b : flat) {
+				sum += b & 0xFF;
+			}
+			final float mean = (float) sum / flat.length;
+			this.gain = new float[flat.length];
+			for (int i = 0; i < flat.length; i++) {
+				gain[i] = Math.min(MAX_GAIN, mean / Math.max(1, flat[i] & 0xFF));
+			}
+		}
+	}
+
+	/**
+	 * Subtracts the dark, divides by the flat and fills hot pixels from their neighbours, in place. Images of a different
+	 * size (e.g. subsampled) are left alone.
+	 *
+	 * @param gray
+	 *          TYPE_BYTE_GRAY image
+	 * @param frames
+	 *          how many exposures were added together into gray, the dark is subtracted that many times
+	 */
+	public void apply(final BufferedImage gray, final int frames) {
+		if (this == NONE || gray.getWidth() != width || gray.getHeight() != height) {
+			return;
+		}
+		final long start = System.nanoTime();
+		final byte[] pixels = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
+		if (dark != null || gain != null) {
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = (byte) Math.min(255, calibrate(i, pixels[i] & 0xFF, frames));
+			}
+		}
+		for (final int idx : hot) {
+			pixels[idx] = (byte) getHotFill(idx, i -> pixels[i] & 0xFF);
+		}
+		Metrics.time(Metrics.Stage.CALIBRATE, start);
+	}
+
+	/**
+	 * Same as apply, on exposures added together before the sum is clipped to 8 bits, so a star that saturates the sum
+	 * still has the dark and flat taken from its full value. Clip after.
+	 *
+	 * @param sum
+	 *          width * height, changed in place
+	 * @param width
+	 * @param height
+	 * @param frames
+	 *          how many exposures were added into sum
+	 */
+	public void apply(final int[] sum, final int width, final int height, final int frames) {
+		if (this == NONE || width != this.width || height != this.height) {
+			return;
+		}
+		final long start = System.nanoTime();
+		if (dark != null || gain != null) {
+			for (int i = 0; i < sum.length; i++) {
+				sum[i] = calibrate(i, sum[i], frames);
+			}
+		}
+		for (final int idx : hot) {
+			sum[idx] = getHotFill(idx, i -> sum[i]);
+		}
+		Metrics.time(Metrics.Stage.CALIBRATE, start);
+	}
+
+	/**
+	 * @return value minus the dark, times the flat's gain, not below 0
+	 */
+	private int calibrate(final int i, final int value, final int frames) {
+		float calibrated = value - (dark == null ? 0 : frames * (dark[i] & 0xFF));
+		if (gain != null) {
+			calibrated *= gain[i];
+		}
+		return Math.max(0, Math.round(calibrated));
+	}
+
+	/**
+	 * @return average of the neighbours that aren't hot themselves
+	 */
+	private int getHotFill(final int idx, final IntUnaryOperator values) {
+		final int x = idx % width, y = idx / width;
+		int sum = 0, count = 0;
+		for (final int neighbour : new int[] { x > 0 ? idx - 1 : -1, x < width - 1 ? idx + 1 : -1, y > 0 ? idx - width
+				: -1, y < height - 1 ? idx + width : -1 }) {
+			if (neighbour >= 0 && !isHot(neighbour)) {
+				sum += values.applyAsInt(neighbour);
+				count++;
+			}
+		}
+		return count == 0 ? 0 : sum / count;
+	}
+
+	/**
+	 * @param idx
+	 *          y * width + x
+	 * @return
+	 */
+	public boolean isHot(final int idx) {
+		return Arrays.binarySearch(hot, idx) >= 0;
+	}
+
+	/**
+	 * Same temp file and move as LumCache, so parallel builders can't leave a torn file
+	 */
+	private void write(final File cacheFile, final long inputsHash) {
+		try {
+			Files.createParentDirs(cacheFile);
+			final ByteBuffer header = ByteBuffer.allocate(4 * 4 + 8);
+			header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putLong(inputsHash);
+			header.flip();
+			final ByteBuffer hotBuffer = ByteBuffer.allocate(4 + 4 * hot.length);
+			hotBuffer.putInt(hot.length).asIntBuffer().put(hot);
+			hotBuffer.rewind();
+			final ByteBuffer[] buffers = { header, flag(dark), dark == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(dark),
+					flag(flat), flat == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(flat), hotBuffer };
+
+			final File tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getParentFile());
+			try (final FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.WRITE)) {
+				while (buffers[buffers.length - 1].hasRemaining()) {
+					channel.write(buffers);
+				}
+			}
+			java.nio.file.Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (final IOException ex) {
+			LOG.log(Level.WARNING, "Unable to write calibration cache " + cacheFile, ex);
+		}
+	}
+
+	private static ByteBuffer flag(final byte[] plane) {
+		final ByteBuffer result = ByteBuffer.allocate(4);
+		result.putInt(plane == null ? 0 : 1).flip();
+		return result;
+	}
+}
@@ -0,0 +1,442 @@
+package info.benjaminhill.vst;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.common.collect.ImmutableList;
+
+import info.benjaminhill.util.DBLite;
+
+/**
+ * Every image under a folder (and its sub-folders) with the timestamp, exposure, camera model and ISO it was taken
+ * with. EXIF is read in
+ * parallel, and for JPEGs only the APP1 segment is parsed, just for the few tags needed. Results are kept in the
+ * `exif` table keyed on path, and only files whose size or mtime changed are read again.
+ * <p>
+ * EXIF times only have whole seconds, so a burst can share a timestamp and collide on frame.ts. Sub-second tags are
+ * used when present, and any remaining duplicate is moved to the next free millisecond. Files keep their assigned
+ * timestamp across scans.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class Catalog {
+
+	private static final List<String> COLUMNS = ImmutableList.of("path", "size", "mtime", "raw_ts", "ts", "exposure",
+			"model", "iso");
+
+	private static final int TAG_EXIF_IFD = 0x8769;
+	private static final int TAG_DATETIME = 0x0132;
+	private static final int TAG_MODEL = 0x0110;
+	private static final int TAG_ISO = 0x8827;
+	private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+	private static final int TAG_EXPOSURE_TIME = 0x829A;
+	private static final int TAG_SUBSEC_TIME_ORIGINAL = 0x9291;
+	private static final DateTimeFormatter EXIF_DATE = DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss");
+
+	private static final Logger LOG = Logger.getLogger(Catalog.class.getName());
+
+	/**
+	 *
+	 */
+	public static void schema() {
+		if (!DBLite.DB.tableExists("exif")) {
+			DBLite.DB.update("create table exif (" + "path string PRIMARY KEY" + ", size integer" + ", mtime integer"
+					+ ", raw_ts integer" + ", ts integer UNIQUE" + ", exposure numeric" + ", model string" + ", iso integer"
+					+ ")");
+			LOG.info("Created table `exif`");
+		}
+		// Rows from before have no model, those files are read again
+		Tables.addMissingColumns("exif", "model string", "iso integer");
+	}
+
+	/**
+	 * What a file's EXIF says
+	 */
+	static class Exif {
+
+		final long ts;
+		final double exposure;
+		/**
+		 * null if unknown
+		 */
+		final String model;
+		/**
+		 * 0 if unknown
+		 */
+		final int iso;
+
+		Exif(final long ts, final double exposure, final String model, final int iso) {
+			this.ts = ts;
+			this.exposure = exposure;
+			this.model = model;
+			this.iso = iso;
+		}
+	}
+
+	/**
+	 * One image file
+	 */
+	private static class Entry {
+
+		final String path;
+		final long size, mtime;
+		/**
+		 * As read from EXIF
+		 */
+		final long rawTs;
+		/**
+		 * Unique across the catalog
+		 */
+		long ts;
+		final double exposure;
+		final String model;
+		final int iso;
+
+		Entry(final String path, final long size, final long mtime, final long rawTs, final long ts,
+				final double exposure, final String model, final int iso) {
+			this.path = path;
+			this.size = size;
+			this.mtime = mtime;
+			this.rawTs = rawTs;
+			this.ts = ts;
+			this.exposure = exposure;
+			this.model = model;
+			this.iso = iso;
+		}
+	}
+
+	/**
+	 * Walks root, reads EXIF for new or changed files on threads, and records them
+	 *
+	 * @param root
+	 * @param threads
+	 * @return
+	 */
+	public static Catalog scan(final Path root, final int threads) {
+		final long start = System.nanoTime();
+		final List<File> files;
+		try (final Stream<Path> walk = Files.walk(root)) {
+			files = walk.filter(Files::isRegularFile).filter(path -> {
+				final String name = path.getFileName().toString().toLowerCase();
+				return name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png");
+			}).map(Path::toFile).collect(Collectors.toList());
+		} catch (final IOException ex) {
+			throw new RuntimeException(ex);
+		}
+
+		final Map<String, Entry> indexed = new HashMap<>();
+		DBLite.DB.selectTable("select `path`,`size`,`mtime`,`raw_ts`,`ts`,`exposure`,`model`,`iso` from exif").rowMap()
+				.forEach((path, row) -> indexed.put(path, new Entry(path, ((Number) row.get("size")).longValue(), ((Number) row
+						.get("mtime")).longValue(), ((Number) row.get("raw_ts")).longValue(), ((Number) row.get("ts")).longValue(),
+						((Number) row.get("exposure")).doubleValue(), (String) row.get("model"), row.get("iso") == null ? 0
+								: ((Number) row.get("iso")).intValue())));
+
+		// Unchanged files keep their entry, the rest are read in parallel
+		final Catalog catalog = new Catalog();
+		final List<Future<Entry>> reads = new ArrayList<>();
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (final File file : files) {
+				final String path = file.getCanonicalPath();
+				final Entry known = indexed.remove(path);
+				if (known != null && known.size == file.length() && known.mtime == file.lastModified()
+						&& known.model != null) {
+					catalog.entries.put(new File(path), known);
+				} else {
+					reads.add(pool.submit(() -> read(file, path)));
+				}
+			}
+			for (final String gone : indexed.keySet()) {
+				DBLite.DB.update("delete from exif where path = ?", gone);
+			}
+			final List<Entry> fresh = new ArrayList<>();
+			for (final Future<Entry> read : reads) {
+				final Entry entry = read.get();
+				if (entry != null) {
+					fresh.add(entry);
+				}
+			}
+			try (final BatchWriter writer = new BatchWriter()) {
+				catalog.assign(fresh, writer);
+			}
+		} catch (final IOException | ExecutionException ex) {
+			throw new RuntimeException(ex);
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		} finally {
+			pool.shutdown();
+		}
+
+		Metrics.time(Metrics.Stage.CATALOG, start);
+		LOG.log(Level.INFO, "Catalog of {0}: {1} images, {2} read, {3} gone", new Object[] { root, catalog.entries.size(),
+				reads.size(), indexed.size() });
+		return catalog;
+	}
+
+	/**
+	 * @return null if the file has no usable timestamp
+	 */
+	private static Entry read(final File file, final String path) {
+		final long size = file.length(), mtime = file.lastModified();
+		try {
+			final Exif exif = readExif(file);
+			// Empty rather than null, so the file isn't read again next scan
+			return new Entry(path, size, mtime, exif.ts, exif.ts, exif.exposure, exif.model == null ? "" : exif.model,
+					exif.iso);
+		} catch (final RuntimeException ex) {
+			LOG.log(Level.WARNING, "Skipping {0}: {1}", new Object[] { file, ex.getMessage() });
+			return null;
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return from the APP1 segment if possible, otherwise the full metadata reader
+	 * @throws RuntimeException
+	 *           if the file has no usable timestamp
+	 */
+	static Exif readExif(final File file) {
+		final long start = System.nanoTime();
+		try {
+			final Exif exif = readJpegExif(file);
+			if (exif != null) {
+				return exif;
+			}
+			// Not a JPEG, or an unusual one
+			final Frame frame = new Frame(file);
+			return new Exif(frame.getTs(), frame.getExposure(), frame.getModel(), frame.getIso());
+		} finally {
+			Metrics.time(Metrics.Stage.EXIF, start);
+		}
+	}
+
+	/**
+	 * Walks the JPEG markers to APP1 and parses the TIFF structure inside it
+	 *
+	 * @return null if this isn't a JPEG with the tags
+	 */
+	static Exif readJpegExif(final File file) {
+		try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readUnsignedShort() != 0xFFD8) {
+				return null;
+			}
+			while (true) {
+				final int marker = in.readUnsignedShort();
+				if ((marker & 0xFF00) != 0xFF00 || marker == 0xFFDA || marker == 0xFFD9) {
+					return null;
+				}
+				final int length = in.readUnsignedShort() - 2;
+				if (marker != 0xFFE1) {
+					skip(in, length);
+					continue;
+				}
+				final byte[] segment = new byte[length];
+				in.readFully(segment);
+				if (length > 6 && new String(segment, 0, 6, StandardCharsets.ISO_8859_1).equals("Exif\0\0")) {
+					return parseTiff(ByteBuffer.wrap(segment, 6, length - 6).slice());
+				}
+			}
+		} catch (final IOException | RuntimeException ex) {
+			LOG.log(Level.FINE, "No fast EXIF for " + file, ex);
+			return null;
+		}
+	}
+
+	private static void skip(final InputStream in, final long count) throws IOException {
+		long left = count;
+		while (left > 0) {
+			final long skipped = in.skip(left);
+			if (skipped <= 0) {
+				throw new IOException("Truncated JPEG");
+			}
+			left -= skipped;
+		}
+	}
+
+	private static Exif parseTiff(final ByteBuffer tiff) {
+		tiff.order(tiff.getShort(0) == 0x4949 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		final Map<Integer, Integer> ifd0 = readIfd(tiff, tiff.getInt(4));
+		final Integer exifOffset = ifd0.get(TAG_EXIF_IFD);
+		final Map<Integer, Integer> exif = exifOffset == null ? Collections.emptyMap() : readIfd(tiff, getLong(tiff,
+				exifOffset));
+
+		String date = null;
+		if (exif.containsKey(TAG_DATETIME_ORIGINAL)) {
+			date = getAscii(tiff, exif.get(TAG_DATETIME_ORIGINAL));
+		} else if (ifd0.containsKey(TAG_DATETIME)) {
+			date = getAscii(tiff, ifd0.get(TAG_DATETIME));
+		}
+		if (date == null || !exif.containsKey(TAG_EXPOSURE_TIME)) {
+			return null;
+		}
+		long ts;
+		try {
+			// Same as the metadata reader (getDate() without a TimeZone), the camera clock read as UTC
+			ts = LocalDateTime.parse(date.trim(), EXIF_DATE).toInstant(ZoneOffset.UTC).toEpochMilli();
+		} catch (final DateTimeParseException ex) {
+			return null;
+		}
+		if (exif.containsKey(TAG_SUBSEC_TIME_ORIGINAL) && exif.containsKey(TAG_DATETIME_ORIGINAL)) {
+			final String subsec = getAscii(tiff, exif.get(TAG_SUBSEC_TIME_ORIGINAL)).trim();
+			if (subsec.matches("\\d+")) {
+				ts += Math.round(Double.parseDouble("0." + subsec) * 1_000);
+			}
+		}
+		final int exposureEntry = exif.get(TAG_EXPOSURE_TIME);
+		final int rational = getLong(tiff, exposureEntry);
+		final double exposure = (tiff.getInt(rational) & 0xFFFFFFFFL) / (double) (tiff.getInt(rational + 4)
+				& 0xFFFFFFFFL);
+		final String model = ifd0.containsKey(TAG_MODEL) ? getAscii(tiff, ifd0.get(TAG_MODEL)).trim() : null;
+		// SHORT, left-justified in the value field
+		final int iso = exif.containsKey(TAG_ISO) ? tiff.getShort(exif.get(TAG_ISO) + 8) & 0xFFFF : 0;
+		return new Exif(ts, exposure, model, iso);
+	}
+
+	/**
+	 * @return tag to the position of its 12 byte entry
+	 */
+	private static Map<Integer, Integer> readIfd(final ByteBuffer tiff, final int offset) {
+		final Map<Integer, Integer> entries = new HashMap<>();
+		final int count = tiff.getShort(offset) & 0xFFFF;
+		for (int i = 0; i < count; i++) {
+			final int entry = offset + 2 + (12 * i);
+			entries.put(tiff.getShort(entry) & 0xFFFF, entry);
+		}
+		return entries;
+	}
+
+	/**
+	 * Value or offset field of an entry
+	 */
+	private static int getLong(final ByteBuffer tiff, final int entry) {
+		return tiff.getInt(entry + 8);
+	}
+
+	private static String getAscii(final ByteBuffer tiff, final int entry) {
+		final int count = tiff.getInt(entry + 4);
+		final int start = count <= 4 ? entry + 8 : tiff.getInt(entry + 8);
+		final byte[] bytes = new byte[count];
+		for (int i = 0; i < count; i++) {
+			bytes[i] = tiff.get(start + i);
+		}
+		int end = 0;
+		while (end < count && bytes[end] != 0) {
+			end++;
+		}
+		return new String(bytes, 0, end, StandardCharsets.US_ASCII);
+	}
+
+	private final Map<File, Entry> entries = new HashMap<>();
+
+	private Catalog() {
+		// empty
+	}
+
+	/**
+	 * Give new entries timestamps no other file has, earliest first, and record them
+	 */
+	private void assign(final List<Entry> fresh, final BatchWriter writer) {
+		final Set<Long> taken = new HashSet<>();
+		entries.values().forEach(entry -> taken.add(entry.ts));
+		fresh.sort(Comparator.<Entry>comparingLong(e -> e.rawTs).thenComparing(e -> e.path));
+		int moved = 0;
+		for (final Entry entry : fresh) {
+			entry.ts = entry.rawTs;
+			while (!taken.add(entry.ts)) {
+				entry.ts++;
+			}
+			if (entry.ts != entry.rawTs) {
+				moved++;
+			}
+			entries.put(new File(entry.path), entry);
+			writer.replace("exif", COLUMNS, entry.path, entry.size, entry.mtime, entry.rawTs, entry.ts, entry.exposure,
+					entry.model, entry.iso);
+		}
+		if (moved > 0) {
+			LOG.log(Level.INFO, "{0} duplicate timestamps moved to the next free millisecond", moved);
+		}
+	}
+
+	/**
+	 * Adds or refreshes one file, for images that show up after the scan
+	 *
+	 * @param file
+	 * @param writer
+	 *          the caller's, queues the exif row in with the rest of its writes
+	 * @return frame with a timestamp no other file in the catalog has, null if the file has no usable timestamp
+	 */
+	public synchronized Frame add(final File file, final BatchWriter writer) {
+		final File canonical;
+		try {
+			canonical = file.getCanonicalFile();
+		} catch (final IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		final Entry known = entries.get(canonical);
+		if (known == null || known.size != file.length() || known.mtime != file.lastModified()) {
+			final Entry entry = read(file, canonical.getPath());
+			if (entry == null) {
+				return null;
+			}
+			// A changed file gives up its old timestamp before taking a new one
+			entries.remove(canonical);
+			assign(new ArrayList<>(Collections.singletonList(entry)), writer);
+		}
+		return getFrame(canonical);
+	}
+
+	/**
+	 * @return every image, in path order
+	 */
+	public SortedSet<File> getFiles() {
+		return new TreeSet<>(entries.keySet());
+	}
+
+	/**
+	 * @param file
+	 *          from getFiles
+	 * @return frame with the catalog's unique timestamp, without reading the file
+	 */
+	public Frame getFrame(final File file) {
+		final Entry entry = entries.get(file);
+		final Map<String, Object> row = new HashMap<>();
+		row.put("ts", entry.ts);
+		row.put("path", entry.path);
+		row.put("exposure", entry.exposure);
+		row.put("model", entry.model);
+		row.put("iso", entry.iso);
+		return new Frame(row);
+	}
+}
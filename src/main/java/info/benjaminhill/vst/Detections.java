@@ -0,0 +1,183 @@
+package info.benjaminhill.vst;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * One frame's detections as parallel primitive arrays, brightest first (then by row, then column). About 16 bytes per
+ * detection instead of a Pixel, its Point and a skip list node. Trails refer to a detection by its index here.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class Detections {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private float[] cx = new float[INITIAL_CAPACITY], cy = new float[INITIAL_CAPACITY];
+	private short[] lum = new short[INITIAL_CAPACITY], area = new short[INITIAL_CAPACITY];
+	private int[] flux = new int[INITIAL_CAPACITY];
+	private int size = 0;
+
+	/**
+	 * Adds and restores the brightest first order. Indices handed out before are no longer valid.
+	 *
+	 * @param pixels
+	 */
+	public synchronized void addAll(final Collection<Pixel> pixels) {
+		ensureCapacity(size + pixels.size());
+		for (final Pixel pixel : pixels) {
+			cx[size] = (float) pixel.cx;
+			cy[size] = (float) pixel.cy;
+			lum[size] = pixel.lum;
+			flux[size] = pixel.flux;
+			area[size] = (short) Math.min(Short.MAX_VALUE, pixel.area);
+			size++;
+		}
+		sort();
+	}
+
+	/**
+	 * Forget everything
+	 */
+	public synchronized void clear() {
+		size = 0;
+	}
+
+	private void ensureCapacity(final int capacity) {
+		if (capacity <= cx.length) {
+			return;
+		}
+		final int grown = Math.max(capacity, cx.length * 2);
+		cx = Arrays.copyOf(cx, grown);
+		cy = Arrays.copyOf(cy, grown);
+		lum = Arrays.copyOf(lum, grown);
+		area = Arrays.copyOf(area, grown);
+		flux = Arrays.copyOf(flux, grown);
+	}
+
+	/**
+	 * Brightest first, then row, then column
+	 */
+	private int compare(final int a, final int b) {
+		int comp = Short.compare(lum[b], lum[a]);
+		if (comp != 0) {
+			return comp;
+		}
+		comp = Integer.compare(getY(a), getY(b));
+		if (comp != 0) {
+			return comp;
+		}
+		return Integer.compare(getX(a), getX(b));
+	}
+
+	/**
+	 * Stable bottom-up merge sort of detection indices
+	 */
+	private int[] sortedOrder() {
+		int[] order = new int[size], buffer = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		for (int width = 1; width < size; width *= 2) {
+			for (int lo = 0; lo < size; lo += 2 * width) {
+				final int mid = Math.min(lo + width, size), hi = Math.min(lo + 2 * width, size);
+				int a = lo, b = mid, out = lo;
+				while (a < mid && b < hi) {
+					buffer[out++] = compare(order[b], order[a]) < 0 ? order[b++] : order[a++];
+				}
+				while (a < mid) {
+					buffer[out++] = order[a++];
+				}
+				while (b < hi) {
+					buffer[out++] = order[b++];
+				}
+			}
+			final int[] swap = order;
+			order = buffer;
+			buffer = swap;
+		}
+		return order;
+	}
+
+	private void sort() {
+		final int[] order = sortedOrder();
+		final float[] sortedCx = new float[cx.length], sortedCy = new float[cx.length];
+		final short[] sortedLum = new short[cx.length], sortedArea = new short[cx.length];
+		final int[] sortedFlux = new int[cx.length];
+		for (int i = 0; i < size; i++) {
+			sortedCx[i] = cx[order[i]];
+			sortedCy[i] = cy[order[i]];
+			sortedLum[i] = lum[order[i]];
+			sortedArea[i] = area[order[i]];
+			sortedFlux[i] = flux[order[i]];
+		}
+		cx = sortedCx;
+		cy = sortedCy;
+		lum = sortedLum;
+		area = sortedArea;
+		flux = sortedFlux;
+	}
+
+	/**
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param i
+	 * @return nearest pixel column, same as Pixel.loc.x
+	 */
+	public int getX(final int i) {
+		return Math.round(cx[i]);
+	}
+
+	/**
+	 * @param i
+	 * @return nearest pixel row, same as Pixel.loc.y
+	 */
+	public int getY(final int i) {
+		return Math.round(cy[i]);
+	}
+
+	/**
+	 * @param i
+	 * @return sub-pixel centroid column
+	 */
+	public double getCx(final int i) {
+		return cx[i];
+	}
+
+	/**
+	 * @param i
+	 * @return sub-pixel centroid row
+	 */
+	public double getCy(final int i) {
+		return cy[i];
+	}
+
+	/**
+	 * @param i
+	 * @return peak luminance
+	 */
+	public short getLum(final int i) {
+		return lum[i];
+	}
+
+	/**
+	 * @param i
+	 * @return
+	 */
+	public int getFlux(final int i) {
+		return flux[i];
+	}
+
+	/**
+	 * @param i
+	 * @return a new Pixel with the detection's values, for code that wants objects
+	 */
+	public Pixel getPixel(final int i) {
+		return new Pixel(cx[i], cy[i], lum[i], flux[i], area[i]);
+	}
+}
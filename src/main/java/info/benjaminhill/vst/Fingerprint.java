@@ -0,0 +1,228 @@
+package info.benjaminhill.vst;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import info.benjaminhill.util.DBLite;
+
+/**
+ * What each input file looked like when it was last processed, and what each frame group was detected with, so a
+ * rerun only redoes what changed. A file is changed when its size changes, or its mtime changes and its content hash
+ * no longer matches. A frame group is stale when any of its files changed or the detection parameters did.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class Fingerprint {
+
+	private static final List<String> COLUMNS = ImmutableList.of("path", "size", "mtime", "hash");
+	private static final List<String> DETECTION_COLUMNS = ImmutableList.of("frame_id", "inputs");
+
+	private static final Logger LOG = Logger.getLogger(Fingerprint.class.getName());
+
+	/**
+	 *
+	 */
+	public static void schema() {
+		if (!DBLite.DB.tableExists("fingerprint")) {
+			DBLite.DB.update("create table fingerprint (" + "path string PRIMARY KEY" + ", size integer" + ", mtime integer"
+					+ ", hash integer" + ")");
+			LOG.info("Created table `fingerprint`");
+		}
+		if (!DBLite.DB.tableExists("detection")) {
+			DBLite.DB.update("create table detection (" + "frame_id integer PRIMARY KEY" + ", inputs string"
+					+ ", FOREIGN KEY(frame_id) REFERENCES frame(id)" + ")");
+			LOG.info("Created table `detection`");
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return murmur3 of the whole file
+	 */
+	static long getHash(final File file) {
+		try {
+			return Files.hash(file, Hashing.murmur3_128()).asLong();
+		} catch (final IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * @return every recorded fingerprint by path
+	 */
+	public static Map<String, Fingerprint> loadAll() {
+		final Map<String, Fingerprint> result = new HashMap<>();
+		DBLite.DB.selectTable("select `path`,`size`,`mtime`,`hash` from fingerprint").rowMap().forEach((path, row) -> result
+				.put(path, new Fingerprint(path, ((Number) row.get("size")).longValue(), ((Number) row.get("mtime"))
+						.longValue(), ((Number) row.get("hash")).longValue())));
+		return result;
+	}
+
+	/**
+	 * Files that are new or changed since they were recorded. Touched but identical files get their new mtime recorded
+	 * on the writer. Frames of files that are gone or changed are deleted through the writer, so they can be ingested
+	 * again.
+	 *
+	 * @param files
+	 *          everything currently in the input folder
+	 * @param writer
+	 * @return files that need ingesting
+	 */
+	public static List<File> getChanged(final SortedSet<File> files, final BatchWriter writer) {
+		final Map<String, Fingerprint> recorded = loadAll();
+		final List<File> changed = new ArrayList<>();
+		int touched = 0;
+		for (final File file : files) {
+			final String path = getPath(file);
+			final Fingerprint before = recorded.remove(path);
+			if (before != null && before.size == file.length() && before.mtime == file.lastModified()) {
+				continue;
+			}
+			if (before != null && before.size == file.length() && before.hash == getHash(file)) {
+				new Fingerprint(path, before.size, file.lastModified(), before.hash).save(writer);
+				touched++;
+				continue;
+			}
+			if (before != null) {
+				writer.delete("frame", "path", path);
+			}
+			changed.add(file);
+		}
+		// Whatever is left is no longer on disk
+		for (final String path : recorded.keySet()) {
+			writer.delete("frame", "path", path);
+			writer.delete("fingerprint", "path", path);
+		}
+		LOG.log(Level.INFO, "Files:{0} new or changed:{1} touched:{2} removed:{3}", new Object[] { files.size(), changed
+				.size(), touched, recorded.size() });
+		return changed;
+	}
+
+	/**
+	 * Drops pixels of frame groups whose inputs or detection parameters changed, and of groups that no longer exist.
+	 *
+	 * @param groups
+	 *          from Frame.loadTimeGrouped
+	 * @param params
+	 *          everything that affects detection, see Brightest.getParams
+	 * @param writer
+	 *          deletes are queued ahead of the new pixels
+	 * @return the stale groups, to be detected again
+	 */
+	public static List<Frame> getStale(final Collection<Frame> groups, final String params, final BatchWriter writer) {
+		final Map<String, Fingerprint> fingerprints = loadAll();
+		final Map<Long, String> recorded = new HashMap<>();
+		DBLite.DB.selectTable("select `frame_id`,`inputs` from detection").rowMap().forEach((frameId, row) -> recorded.put(
+				Long.parseLong(frameId), (String) row.get("inputs")));
+
+		final List<Frame> stale = new ArrayList<>();
+		for (final Frame group : groups) {
+			if (!getInputs(group, params, fingerprints).equals(recorded.remove(group.getTs()))) {
+				stale.add(group);
+			}
+		}
+		for (final Frame group : stale) {
+			writer.delete("pixel", "frame_id", group.getTs());
+			group.clearPixels();
+		}
+		// Groups that don't exist any more, e.g. a frame was removed or COMBINE_EXPOSURE_MS changed
+		for (final Long frameId : recorded.keySet()) {
+			writer.delete("pixel", "frame_id", frameId);
+			writer.delete("detection", "frame_id", frameId);
+		}
+		LOG.log(Level.INFO, "Frame groups:{0} to detect:{1} gone:{2}", new Object[] { groups.size(), stale.size(), recorded
+				.size() });
+		return stale;
+	}
+
+	/**
+	 * Record that these groups are detected with these params
+	 *
+	 * @param groups
+	 * @param params
+	 * @param writer
+	 */
+	public static void saveDetected(final Collection<Frame> groups, final String params, final BatchWriter writer) {
+		final Map<String, Fingerprint> fingerprints = loadAll();
+		groups.forEach(group -> writer.replace("detection", DETECTION_COLUMNS, group.getTs(), getInputs(group, params,
+				fingerprints)));
+	}
+
+	/**
+	 * Same as saveDetected, for a frame of this one file, from this fingerprint rather than the recorded one (which may
+	 * still be on the writer's queue)
+	 *
+	 * @param frame
+	 * @param params
+	 * @param writer
+	 */
+	public void saveDetected(final Frame frame, final String params, final BatchWriter writer) {
+		writer.replace("detection", DETECTION_COLUMNS, frame.getTs(), getInputs(frame, params, Collections.singletonMap(
+				path, this)));
+	}
+
+	/**
+	 * Hash of the params and every sub-frame's path and content
+	 */
+	private static String getInputs(final Frame group, final String params,
+			final Map<String, Fingerprint> fingerprints) {
+		final Hasher hasher = Hashing.murmur3_128().newHasher().putString(params, StandardCharsets.UTF_8);
+		for (final File file : group.getSubFrameFiles()) {
+			final Fingerprint fingerprint = fingerprints.get(getPath(file));
+			hasher.putString(file.getPath(), StandardCharsets.UTF_8).putLong(fingerprint == null ? 0 : fingerprint.hash);
+		}
+		return hasher.hash().toString();
+	}
+
+	private static String getPath(final File file) {
+		try {
+			return file.getCanonicalPath();
+		} catch (final IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Fingerprint of the file as it is now
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static Fingerprint of(final File file) {
+		return new Fingerprint(getPath(file), file.length(), file.lastModified(), getHash(file));
+	}
+
+	private final String path;
+	private final long size, mtime, hash;
+
+	private Fingerprint(final String path, final long size, final long mtime, final long hash) {
+		this.path = path;
+		this.size = size;
+		this.mtime = mtime;
+		this.hash = hash;
+	}
+
+	/**
+	 * Queued as insert or replace
+	 *
+	 * @param writer
+	 */
+	public void save(final BatchWriter writer) {
+		writer.replace("fingerprint", COLUMNS, path, size, mtime, hash);
+	}
+}
@@ -1,27 +1,32 @@
 package info.benjaminhill.vst;
 
-import java.io.BufferedReader;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import javax.imageio.ImageIO;
+
 import com.drew.imaging.ImageMetadataReader;
 import com.drew.imaging.ImageProcessingException;
 import com.drew.lang.Rational;
 import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifIFD0Directory;
 import com.drew.metadata.exif.ExifSubIFDDirectory;
-import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
 import com.google.common.io.Files;
 
 import info.benjaminhill.util.DBLite;
@@ -34,21 +39,31 @@ import info.benjaminhill.util.DBLite;
 public class Frame implements Comparable<Frame> {
 
 	private static final Logger LOG = Logger.getLogger(Frame.class.getName());
+	private static final List<String> COLUMNS = ImmutableList.of("ts", "path", "exposure");
+
+	/**
+	 * Keep a copy of each added-together frame in add/ (only useful for eyeballing)
+	 */
+	private static final boolean WRITE_ADDED_PNG = false;
 
 	/**
 	 * @return frames that are grouped into a time window (may be 1 or more frames under the hood)
 	 */
 	public static SortedSet<Frame> loadTimeGrouped(final long ms) {
+		final Map<Long, List<Pixel>> allPixels = Pixel.loadAll();
 
-		final Map<Long, List<Frame>> framesGroupByWindow = DBLite.DB.selectTable("select `ts`,`path`,`exposure` from frame")
-				.rowMap().entrySet().stream().<Map<String, Object>>map(ent -> {
+		// Model and ISO from the catalog, for calibration
+		final Map<Long, List<Frame>> framesGroupByWindow = DBLite.DB.selectTable(
+				"select frame.`ts`,frame.`path`,frame.`exposure`,exif.`model`,exif.`iso`"
+						+ " from frame LEFT JOIN exif ON exif.`path` = frame.`path`").rowMap().entrySet().stream()
+				.<Map<String, Object>>map(ent -> {
 					final Map<String, Object> row = new HashMap<>();
 					row.putAll(ent.getValue());
 					row.put("ts", Long.parseLong(ent.getKey()));
 					return row;
 				}).<Frame>map(row -> {
 					final Frame newFrame = new Frame(row);
-					newFrame.pixels.addAll(Pixel.load(newFrame.ts));
+					newFrame.pixels.addAll(allPixels.getOrDefault(newFrame.ts, Collections.emptyList()));
 					return newFrame;
 				}).collect(Collectors.groupingBy(frame -> {
 					return frame.getTs() / ms;
@@ -88,13 +103,21 @@ public class Frame implements Comparable<Frame> {
 	 */
 	private final SortedSet<String> addPaths = new ConcurrentSkipListSet<>();
 	private double exposure = -1;
-	private final SortedSet<Pixel> pixels = new ConcurrentSkipListSet<>();
+	/**
+	 * Camera model, null if unknown
+	 */
+	private String model = null;
+	/**
+	 * 0 if unknown
+	 */
+	private int iso = 0;
+	private final Detections pixels = new Detections();
 
 	/**
 	 * @param frameFile
 	 */
 	public Frame(final File frameFile) {
-
+		final long start = System.nanoTime();
 		try {
 			path = frameFile.getCanonicalPath();
 			final Metadata metadata = ImageMetadataReader.readMetadata(frameFile);
@@ -117,11 +140,21 @@ public class Frame implements Comparable<Frame> {
 				// exposure time
 				final Rational exTimeR = directory.getRational(ExifSubIFDDirectory.TAG_EXPOSURE_TIME);
 				exposure = (1.0 * exTimeR.getNumerator()) / exTimeR.getDenominator();
+
+				if (directory.getInteger(ExifSubIFDDirectory.TAG_ISO_EQUIVALENT) != null) {
+					iso = directory.getInteger(ExifSubIFDDirectory.TAG_ISO_EQUIVALENT);
+				}
+				final ExifIFD0Directory ifd0 = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+				if (ifd0 != null && ifd0.getString(ExifIFD0Directory.TAG_MODEL) != null) {
+					model = ifd0.getString(ExifIFD0Directory.TAG_MODEL).trim();
+				}
 			} else {
 				throw new RuntimeException("Unable to load timestamp from image.");
 			}
 		} catch (final ImageProcessingException | IOException ex) {
 			throw new RuntimeException(ex);
+		} finally {
+			Metrics.time(Metrics.Stage.EXIF, start);
 		}
 	}
 
@@ -134,6 +167,12 @@ public class Frame implements Comparable<Frame> {
 		if (row.containsKey("exposure")) {
 			this.exposure = (Double) row.get("exposure");
 		}
+		if (row.get("model") != null) {
+			this.model = (String) row.get("model");
+		}
+		if (row.get("iso") != null) {
+			this.iso = ((Number) row.get("iso")).intValue();
+		}
 	}
 
 	@Override
@@ -145,16 +184,106 @@ public class Frame implements Comparable<Frame> {
 	 * Immediately saves to DB
 	 */
 	public void findBrights() {
-		pixels.addAll(Brightest.getBrightest(getAddedPath()));
-		pixels.stream().forEach(pixel -> {
+		findBrights(Brightest.Mode.BUCKETS);
+	}
+
+	/**
+	 * Immediately saves to DB
+	 *
+	 * @param mode
+	 */
+	public void findBrights(final Brightest.Mode mode) {
+		final BufferedImage gray = getCalibratedGray(Collections.emptyMap());
+		final Set<Pixel> found = Brightest.getBrightest(gray, mode);
+		ImageUtils.recycle(gray);
+		pixels.addAll(found);
+		found.forEach(pixel -> {
 			pixel.save(ts);
 		});
 	}
 
+	/**
+	 * Pixels are queued on the writer rather than saved immediately
+	 *
+	 * @param mode
+	 * @param writer
+	 */
+	public void findBrights(final Brightest.Mode mode, final BatchWriter writer) {
+		final BufferedImage gray = getCalibratedGray(Collections.emptyMap());
+		addPixels(Brightest.getBrightest(gray, mode), writer);
+		ImageUtils.recycle(gray);
+	}
+
+	/**
+	 * For callers that ran detection themselves. Queued on the writer.
+	 *
+	 * @param found
+	 * @param writer
+	 */
+	public void addPixels(final Collection<Pixel> found, final BatchWriter writer) {
+		pixels.addAll(found);
+		Metrics.add(Metrics.Count.PIXELS, found.size());
+		found.forEach(pixel -> {
+			pixel.save(writer, ts);
+		});
+	}
+
+	/**
+	 * Kept in memory only, for previews that don't touch the DB
+	 *
+	 * @param found
+	 */
+	void addPixels(final Collection<Pixel> found) {
+		pixels.addAll(found);
+	}
+
+	/**
+	 * All sub-frames added together in memory. Also written to add/ if WRITE_ADDED_PNG.
+	 *
+	 * @return TYPE_BYTE_GRAY image
+	 */
+	public BufferedImage getAddedGray() {
+		return getAddedGray(Collections.emptyMap());
+	}
+
+	/**
+	 * @param preloaded
+	 *          contents of some of the sub-frame files, already read off disk
+	 * @return TYPE_BYTE_GRAY image
+	 */
+	public BufferedImage getAddedGray(final Map<File, byte[]> preloaded) {
+		if (addPaths.isEmpty()) {
+			final File file = new File(path);
+			return ImageUtils.getGray(file, preloaded.get(file));
+		}
+		final BufferedImage added = ImageUtils.getAddedGray(getSubFrameFiles(), preloaded);
+		if (WRITE_ADDED_PNG) {
+			writeAdded(added);
+		}
+		return added;
+	}
+
+	/**
+	 * What detection looks at: the added sub-frames with darks, flats and hot pixels corrected, see Calibration
+	 *
+	 * @param preloaded
+	 *          contents of some of the sub-frame files, already read off disk
+	 * @return TYPE_BYTE_GRAY image
+	 */
+	public BufferedImage getCalibratedGray(final Map<File, byte[]> preloaded) {
+		final Calibration calibration = Calibration.forFrame(this);
+		if (addPaths.isEmpty()) {
+			final File file = new File(path);
+			final BufferedImage gray = ImageUtils.getGray(file, preloaded.get(file));
+			calibration.apply(gray, 1);
+			return gray;
+		}
+		// On the sum before it is clipped to 8 bits
+		return ImageUtils.getAddedGray(getSubFrameFiles(), preloaded, calibration);
+	}
+
 	/**
 	 * Adds together all sub-frames into a single image
-	 * 
-	 * @throws IOException
 	 */
 	public String getAddedPath() {
 		if (addPaths.isEmpty()) {
@@ -162,38 +291,40 @@ public class Frame implements Comparable<Frame> {
 		}
 
 		try {
-			final File additiveFile = Paths.get("add", Files.getNameWithoutExtension(path) + "_add.png").toFile();
-			if (additiveFile.exists()) {
-				return additiveFile.getCanonicalPath().toString();
+			final File additiveFile = getAddedFile();
+			if (!additiveFile.exists()) {
+				final BufferedImage added = ImageUtils.getAddedGray(getSubFrameFiles());
+				writeAdded(added);
+				ImageUtils.recycle(added);
 			}
+			return additiveFile.getCanonicalPath();
+		} catch (final IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
 
-			Files.createParentDirs(additiveFile);
+	private File getAddedFile() {
+		return Paths.get("add", Files.getNameWithoutExtension(path) + "_add.png").toFile();
+	}
 
-			final LinkedList<String> commands = new LinkedList<>();
+	/**
+	 * @return this frame and every sub-frame, each once
+	 */
+	SortedSet<File> getSubFrameFiles() {
+		final SortedSet<File> files = new TreeSet<>();
+		files.add(new File(path));
+		addPaths.forEach(subPath -> files.add(new File(subPath)));
+		return files;
+	}
 
-			commands.addLast(additiveFile.toString());
-			commands.addFirst("add");
-			commands.addFirst("-evaluate-sequence");
-			commands.addFirst(path);
-			for (final String img : addPaths) {
-				commands.addFirst(img);
-			}
-			commands.addFirst("/usr/local/bin/convert");
-			System.out.println(Joiner.on(" ").join(commands));
-			final ProcessBuilder pb = new ProcessBuilder(commands);
-			final Process process = pb.start();
-
-			try (final BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream()));) {
-				String line;
-				while ((line = br.readLine()) != null) {
-					System.out.println(line);
-				}
-			}
-			return additiveFile.toString();
+	private void writeAdded(final BufferedImage added) {
+		final File additiveFile = getAddedFile();
+		try {
+			Files.createParentDirs(additiveFile);
+			ImageIO.write(added, "png", additiveFile);
 		} catch (final IOException ex) {
 			throw new RuntimeException(ex);
 		}
-
 	}
 
 	/**
@@ -206,8 +337,47 @@ public class Frame implements Comparable<Frame> {
 	/**
 	 * @return
 	 */
-	public SortedSet<Pixel> getPixels() {
-		return Collections.unmodifiableSortedSet(pixels);
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return camera model, null if unknown
+	 */
+	public String getModel() {
+		return model;
+	}
+
+	/**
+	 * @return 0 if unknown
+	 */
+	public int getIso() {
+		return iso;
+	}
+
+	/**
+	 * Forget detections, before detecting again
+	 */
+	void clearPixels() {
+		pixels.clear();
+	}
+
+	/**
+	 * @return this frame's detections, brightest first
+	 */
+	public Detections getDetections() {
+		return pixels;
+	}
+
+	/**
+	 * @return a copy of the detections as Pixels, brightest first
+	 */
+	public List<Pixel> getPixels() {
+		final List<Pixel> result = new ArrayList<>(pixels.size());
+		for (int i = 0; i < pixels.size(); i++) {
+			result.add(pixels.getPixel(i));
+		}
+		return result;
 	}
 
 	/**
@@ -225,4 +395,15 @@ public class Frame implements Comparable<Frame> {
 		return this;
 	}
 
+	/**
+	 * Queued, written by the BatchWriter's thread
+	 *
+	 * @param writer
+	 * @return
+	 */
+	public Frame save(final BatchWriter writer) {
+		writer.insert("frame", COLUMNS, ts, path, exposure);
+		return this;
+	}
+
 }
@@ -0,0 +1,166 @@
+package info.benjaminhill.vst;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Explicit stages instead of parallelStream on the common pool: file reads on an I/O pool, decode and detection on a
+ * CPU pool sized to the cores, and persistence on the BatchWriter's single thread. At most readAhead frames are in
+ * flight between reading and detection, and the BatchWriter's bounded queue holds back detection if the DB falls
+ * behind, so memory stays bounded.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class FramePipeline {
+
+	private static final Logger LOG = Logger.getLogger(FramePipeline.class.getName());
+
+	/**
+	 * Per stage settings, defaults can be overridden with -Dvst.ioThreads=... etc.
+	 */
+	public static class Config {
+
+		/**
+		 * Threads reading files (and EXIF and hashes during ingest)
+		 */
+		public int ioThreads = Integer.getInteger("vst.ioThreads", 4);
+		/**
+		 * Threads decoding and detecting
+		 */
+		public int cpuThreads = Integer.getInteger("vst.cpuThreads", Runtime.getRuntime().availableProcessors());
+		/**
+		 * Frames read but not yet through detection
+		 */
+		public int readAhead = Integer.getInteger("vst.readAhead", 2 * Runtime.getRuntime().availableProcessors());
+		/**
+		 *
+		 */
+		public Brightest.Mode mode = Brightest.Mode.BUCKETS;
+	}
+
+	private static ThreadFactory named(final String prefix) {
+		final AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			final Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * Read every sub-frame that isn't already in the LumCache
+	 */
+	private static Map<File, byte[]> read(final Frame frame) {
+		final Map<File, byte[]> preloaded = new HashMap<>();
+		for (final File file : frame.getSubFrameFiles()) {
+			if (!ImageUtils.isCached(file)) {
+				try {
+					preloaded.put(file, Files.readAllBytes(file.toPath()));
+				} catch (final IOException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		}
+		return preloaded;
+	}
+
+	private static void detect(final Frame frame, final Map<File, byte[]> preloaded, final Brightest.Mode mode,
+			final BatchWriter writer) {
+		final BufferedImage gray = frame.getCalibratedGray(preloaded);
+		frame.addPixels(Brightest.getBrightest(gray, mode), writer);
+		ImageUtils.recycle(gray);
+		Metrics.add(Metrics.Count.FRAMES, 1);
+		LOG.log(Level.FINE, "{0}\t{1}", new Object[] { frame.getDetections().size(), frame.getPath() });
+	}
+
+	/**
+	 * Queues each file's frame (timestamp from the catalog) and fingerprint on the writer. Hashing for the fingerprint
+	 * reads the whole file, so it runs on the I/O pool.
+	 *
+	 * @param files
+	 * @param catalog
+	 *          has every file in files
+	 * @param config
+	 * @param writer
+	 */
+	public static void ingest(final Collection<File> files, final Catalog catalog, final Config config,
+			final BatchWriter writer) {
+		final ExecutorService io = Executors.newFixedThreadPool(config.ioThreads, named("ingest"));
+		try {
+			final List<CompletableFuture<Void>> futures = new ArrayList<>(files.size());
+			files.forEach(file -> futures.add(CompletableFuture.runAsync(() -> {
+				catalog.getFrame(file).save(writer);
+				Fingerprint.of(file).save(writer);
+				Metrics.add(Metrics.Count.FILES, 1);
+			}, io)));
+			await(futures);
+		} finally {
+			io.shutdown();
+		}
+	}
+
+	/**
+	 * Read, then decode and detect, then persist, for every frame
+	 *
+	 * @param frames
+	 * @param config
+	 * @param writer
+	 */
+	public static void findBrights(final Collection<Frame> frames, final Config config, final BatchWriter writer) {
+		final ExecutorService io = Executors.newFixedThreadPool(config.ioThreads, named("read"));
+		final ExecutorService cpu = Executors.newFixedThreadPool(config.cpuThreads, named("detect"));
+		final Semaphore inFlight = new Semaphore(config.readAhead);
+		try {
+			final List<CompletableFuture<Void>> futures = new ArrayList<>(frames.size());
+			for (final Frame frame : frames) {
+				// Backpressure: don't read further ahead than detection can keep up with
+				inFlight.acquireUninterruptibly();
+				Metrics.gauge(Metrics.Gauge.READ_AHEAD, config.readAhead - inFlight.availablePermits());
+				futures.add(CompletableFuture.supplyAsync(() -> read(frame), io).thenAcceptAsync(preloaded -> detect(frame,
+						preloaded, config.mode, writer), cpu).whenComplete((ignored, ex) -> inFlight.release()));
+			}
+			await(futures);
+			LumCache.flush();
+		} finally {
+			io.shutdown();
+			cpu.shutdown();
+		}
+	}
+
+	/**
+	 * Waits for everything, logs each failure and then fails
+	 */
+	private static void await(final List<CompletableFuture<Void>> futures) {
+		int failures = 0;
+		for (final CompletableFuture<Void> future : futures) {
+			try {
+				future.join();
+			} catch (final RuntimeException ex) {
+				LOG.log(Level.SEVERE, "Pipeline task failed", ex);
+				failures++;
+			}
+		}
+		if (failures > 0) {
+			throw new RuntimeException(failures + " pipeline tasks failed");
+		}
+	}
+
+	private FramePipeline() {
+		// empty
+	}
+}
@@ -1,9 +1,11 @@
 package info.benjaminhill.vst;
 
 import java.awt.Color;
-import java.awt.Graphics;
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.DirectoryStream;
@@ -11,17 +13,25 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.SortedSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.IntStream;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.JFileChooser;
 
 import com.google.common.primitives.Shorts;
@@ -36,34 +46,337 @@ public class ImageUtils {
 	private static final Logger LOG = Logger.getLogger(ImageUtils.class.getName());
 
 	/**
+	 * Keep decoded luminance in lum/ so reruns don't decode the JPEGs again
+	 */
+	private static final boolean USE_LUM_CACHE = true;
+
+	/**
+	 * Spare gray images kept per size, enough for every worker to have one in flight
+	 */
+	private static final int GRAY_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+	private static final Map<Dimension, Queue<BufferedImage>> GRAY_POOL = new ConcurrentHashMap<>();
+
+	/**
+	 * Integer BT.601 luma in one pass over the image. Straight from the bytes of TYPE_3BYTE_BGR (what the JPEG reader
+	 * gives), through getRGB for anything else.
+	 *
 	 * @param colorImage
 	 * @return
 	 */
 	public static BufferedImage getGray(final BufferedImage colorImage) {
 		assert colorImage != null;
+		final long start = System.nanoTime();
 		final int width = colorImage.getWidth(), height = colorImage.getHeight();
-		final BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-		final Graphics g = result.getGraphics();
-		g.drawImage(colorImage, 0, 0, null);
-		g.dispose();
+		final BufferedImage result = borrowGray(width, height);
+		final byte[] lum = ((DataBufferByte) result.getRaster().getDataBuffer()).getData();
+		if (colorImage.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+			colorImage.getRaster().getDataElements(0, 0, width, height, lum);
+			Metrics.time(Metrics.Stage.GRAY, start);
+			return result;
+		}
+		final byte[] bgr = colorImage.getType() == BufferedImage.TYPE_3BYTE_BGR ? ((DataBufferByte) colorImage.getRaster()
+				.getDataBuffer()).getData() : null;
+		// Subimages share a bigger buffer, those go the slow way
+		if (bgr != null && bgr.length == 3 * lum.length) {
+			Kernels.get().bgrToGray(bgr, lum);
+			Metrics.time(Metrics.Stage.GRAY, start);
+			return result;
+		}
+		final int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			colorImage.getRGB(0, y, width, 1, row, 0, width);
+			final int rowStart = y * width;
+			for (int x = 0; x < width; x++) {
+				final int rgb = row[x];
+				lum[rowStart + x] = (byte) ((77 * ((rgb >> 16) & 0xFF) + 150 * ((rgb >> 8) & 0xFF) + 29 * (rgb & 0xFF)
+						+ 128) >> 8);
+			}
+		}
+		Metrics.time(Metrics.Stage.GRAY, start);
 		return result;
 	}
 
 	/**
-	 * Image flattened and turned grey
+	 * A gray image from the pool, or a new one. Contents are whatever the last user left.
+	 *
+	 * @param width
+	 * @param height
+	 * @return TYPE_BYTE_GRAY image
+	 */
+	static BufferedImage borrowGray(final int width, final int height) {
+		final Queue<BufferedImage> pool = GRAY_POOL.get(new Dimension(width, height));
+		final BufferedImage pooled = pool == null ? null : pool.poll();
+		return pooled != null ? pooled : new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+	}
+
+	/**
+	 * Hand a gray image back for reuse by the next frame. Don't touch it afterwards.
+	 *
+	 * @param gray
+	 */
+	public static void recycle(final BufferedImage gray) {
+		if (gray == null || gray.getType() != BufferedImage.TYPE_BYTE_GRAY) {
+			return;
+		}
+		final Queue<BufferedImage> pool = GRAY_POOL.computeIfAbsent(new Dimension(gray.getWidth(), gray.getHeight()),
+				dim -> new ConcurrentLinkedQueue<>());
+		if (pool.size() < GRAY_POOL_SIZE) {
+			pool.offer(gray);
+		}
+	}
+
+	/**
+	 * JPEGs decode straight to the Y channel when the destination is gray, skipping the colour conversion. Anything else
+	 * is decoded in colour and converted by getGray.
+	 *
+	 * @param input
+	 *          File or InputStream
+	 * @param region
+	 *          null for the whole image, clipped to the image bounds
+	 * @param subsample
+	 *          keep every nth row and column, 1 for all
+	 * @return TYPE_BYTE_GRAY image
+	 */
+	private static BufferedImage readGray(final Object input, final Rectangle region, final int subsample) {
+		final long start = System.nanoTime();
+		try (final ImageInputStream iis = ImageIO.createImageInputStream(input)) {
+			final Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			if (!readers.hasNext()) {
+				throw new RuntimeException("No reader for " + input);
+			}
+			final ImageReader reader = readers.next();
+			try {
+				reader.setInput(iis, true, true);
+				final ImageReadParam param = reader.getDefaultReadParam();
+				final Rectangle bounds = new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0));
+				final Rectangle clipped = region == null ? bounds : bounds.intersection(region);
+				param.setSourceRegion(clipped);
+				param.setSourceSubsampling(subsample, subsample, 0, 0);
+				final int width = (clipped.width + subsample - 1) / subsample;
+				final int height = (clipped.height + subsample - 1) / subsample;
+
+				boolean grayAvailable = false;
+				for (final Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0); types.hasNext();) {
+					grayAvailable |= types.next().getBufferedImageType() == BufferedImage.TYPE_BYTE_GRAY;
+				}
+				if (grayAvailable) {
+					final BufferedImage gray = borrowGray(width, height);
+					param.setDestination(gray);
+					return reader.read(0, param);
+				}
+				return getGray(reader.read(0, param));
+			} finally {
+				reader.dispose();
+			}
+		} catch (final IOException ex) {
+			throw new RuntimeException(ex);
+		} finally {
+			Metrics.time(Metrics.Stage.DECODE, start);
+		}
+	}
+
+	/**
+	 * Only rows [y, y + rows) of the image, flattened and turned grey. Keeps memory to one band no matter how big the
+	 * image is.
+	 *
+	 * @param imageFile
+	 * @param y
+	 *          first row
+	 * @param rows
+	 * @return TYPE_BYTE_GRAY image of width x rows
+	 */
+	public static BufferedImage getGrayBand(final File imageFile, final int y, final int rows) {
+		final BufferedImage cached = USE_LUM_CACHE ? LumCache.getGrayBand(imageFile, y, rows) : null;
+		if (cached != null) {
+			return cached;
+		}
+		return readGray(imageFile, new Rectangle(0, y, Integer.MAX_VALUE, rows), 1);
+	}
+
+	/**
+	 * Reads only the header
+	 *
+	 * @param imageFile
+	 * @return
+	 */
+	public static Dimension getDimension(final File imageFile) {
+		try (final ImageInputStream iis = ImageIO.createImageInputStream(imageFile)) {
+			final Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			if (!readers.hasNext()) {
+				throw new RuntimeException("No reader for " + imageFile);
+			}
+			final ImageReader reader = readers.next();
+			try {
+				reader.setInput(iis, true, true);
+				return new Dimension(reader.getWidth(0), reader.getHeight(0));
+			} finally {
+				reader.dispose();
+			}
+		} catch (final IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Image flattened and turned grey, from the LumCache when enabled
 	 *
 	 * @param imageFile
 	 * @return
 	 */
 	public static BufferedImage getGray(final File imageFile) {
+		return USE_LUM_CACHE ? LumCache.getGray(imageFile) : decodeGray(imageFile);
+	}
+
+	/**
+	 * Image flattened and turned grey, decoded from bytes that were already read off disk. Cached like getGray(File), but
+	 * the cache file is written on LumCache's writer thread.
+	 *
+	 * @param imageFile
+	 *          where the bytes came from
+	 * @param preloaded
+	 *          the file's contents, or null to read it now
+	 * @return
+	 */
+	public static BufferedImage getGray(final File imageFile, final byte[] preloaded) {
+		if (preloaded == null) {
+			return getGray(imageFile);
+		}
+		final BufferedImage gray = readGray(new ByteArrayInputStream(preloaded), null, 1);
+		if (USE_LUM_CACHE) {
+			LumCache.writeLater(imageFile, gray, preloaded);
+		}
+		return gray;
+	}
+
+	/**
+	 * @param imageFile
+	 * @return true if getGray won't need to read the source file
+	 */
+	public static boolean isCached(final File imageFile) {
+		return USE_LUM_CACHE && LumCache.isFresh(imageFile);
+	}
+
+	/**
+	 * Image flattened and turned grey, always decoded from the source
+	 *
+	 * @param imageFile
+	 * @return
+	 */
+	public static BufferedImage decodeGray(final File imageFile) {
+		assert imageFile.canRead();
+		return readGray(imageFile, null, 1);
+	}
+
+	/**
+	 * Full colour, always decoded from the source
+	 *
+	 * @param imageFile
+	 * @return TYPE_3BYTE_BGR image
+	 */
+	public static BufferedImage getBgr(final File imageFile) {
+		final long start = System.nanoTime();
 		try {
-			assert imageFile.canRead();
-			final BufferedImage colorImage = ImageIO.read(imageFile);
-			assert colorImage != null;
-			return getGray(colorImage);
+			final BufferedImage image = ImageIO.read(imageFile);
+			if (image == null) {
+				throw new RuntimeException("No reader for " + imageFile);
+			}
+			if (image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+				return image;
+			}
+			final BufferedImage bgr = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+			bgr.getGraphics().drawImage(image, 0, 0, null);
+			return bgr;
 		} catch (final IOException ex) {
 			throw new RuntimeException(ex);
+		} finally {
+			Metrics.time(Metrics.Stage.DECODE, start);
+		}
+	}
+
+	/**
+	 * Every nth row and column only, for quick looks. Pixel (x, y) of the result is (x * subsample, y * subsample) of the
+	 * original.
+	 *
+	 * @param imageFile
+	 * @param subsample
+	 * @return TYPE_BYTE_GRAY image
+	 */
+	public static BufferedImage getGraySubsampled(final File imageFile, final int subsample) {
+		if (subsample <= 1) {
+			return getGray(imageFile);
+		}
+		final LumCache.Plane cached = USE_LUM_CACHE ? LumCache.map(imageFile) : null;
+		if (cached == null) {
+			return readGray(imageFile, null, subsample);
+		}
+		final int width = (cached.width + subsample - 1) / subsample, height = (cached.height + subsample - 1) / subsample;
+		final BufferedImage result = borrowGray(width, height);
+		final byte[] lum = ((DataBufferByte) result.getRaster().getDataBuffer()).getData();
+		for (int y = 0; y < height; y++) {
+			final int sourceRow = y * subsample * cached.width;
+			for (int x = 0; x < width; x++) {
+				lum[y * width + x] = cached.lum.get(sourceRow + x * subsample);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Adds together the luminance of several same-sized images, clipped to 8 bits like `convert -evaluate-sequence add`
+	 *
+	 * @param imageFiles
+	 * @return TYPE_BYTE_GRAY image
+	 */
+	public static BufferedImage getAddedGray(final Collection<File> imageFiles) {
+		return getAddedGray(imageFiles, Collections.emptyMap());
+	}
+
+	/**
+	 * @param imageFiles
+	 * @param preloaded
+	 *          contents of some of the files, see getGray(File, byte[])
+	 * @return TYPE_BYTE_GRAY image
+	 */
+	public static BufferedImage getAddedGray(final Collection<File> imageFiles, final Map<File, byte[]> preloaded) {
+		return getAddedGray(imageFiles, preloaded, Calibration.NONE);
+	}
+
+	/**
+	 * @param imageFiles
+	 * @param preloaded
+	 *          contents of some of the files, see getGray(File, byte[])
+	 * @param calibration
+	 *          applied to the sum before it is clipped to 8 bits
+	 * @return TYPE_BYTE_GRAY image
+	 */
+	public static BufferedImage getAddedGray(final Collection<File> imageFiles, final Map<File, byte[]> preloaded,
+			final Calibration calibration) {
+		assert !imageFiles.isEmpty();
+		int width = -1, height = -1, added = 0;
+		int[] sum = null;
+		for (final File imageFile : imageFiles) {
+			final BufferedImage gray = getGray(imageFile, preloaded.get(imageFile));
+			if (sum == null) {
+				width = gray.getWidth();
+				height = gray.getHeight();
+				sum = new int[width * height];
+			} else if (gray.getWidth() != width || gray.getHeight() != height) {
+				LOG.log(Level.WARNING, "Skipping {0}, size {1}x{2} instead of {3}x{4}", new Object[] { imageFile, gray
+						.getWidth(), gray.getHeight(), width, height });
+				continue;
+			}
+			Kernels.get().addUnsigned(((DataBufferByte) gray.getRaster().getDataBuffer()).getData(), sum);
+			recycle(gray);
+			added++;
 		}
+		calibration.apply(sum, width, height, added);
+
+		final BufferedImage result = borrowGray(width, height);
+		final byte[] resultData = ((DataBufferByte) result.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < sum.length; i++) {
+			resultData[i] = (byte) Math.min(255, sum[i]);
+		}
+		return result;
 	}
 
 	/**
@@ -100,12 +413,6 @@ public class ImageUtils {
 		return Paths.get(jfc.getSelectedFile().toURI());
 	}
 
-	/** Ignores that some arrays can be even length, doesn't average the two middle. */
-	private static short median(final short[] data) {
-		Arrays.sort(data);
-		return data[data.length / 2];
-	}
-
 	/**
 	 * @param fileName
 	 * @param pixelLums
@@ -133,10 +440,55 @@ public class ImageUtils {
 		}
 	}
 
+	/**
+	 * @param fileName
+	 *          without the .png
+	 * @param values
+	 *          one per pixel, or interleaved B, G, R per pixel
+	 * @param channels
+	 *          1 or 3
+	 * @param width
+	 * @param height
+	 * @param normalize
+	 *          scale so the brightest value is white, otherwise values over 255 are clipped
+	 */
+	public static void writeImage(final String fileName, final float[] values, final int channels, final int width,
+			final int height, final boolean normalize) {
+		float maxValue = 0;
+		for (final float value : values) {
+			maxValue = Math.max(maxValue, value);
+		}
+		LOG.log(Level.INFO, "Writing to {0} with max value of {1} normalise:{2}", new Object[] { fileName, maxValue,
+				normalize });
+		final float scale = normalize && maxValue > 0 ? 255f / maxValue : 1f;
+		final BufferedImage result = new BufferedImage(width, height, channels == 1 ? BufferedImage.TYPE_BYTE_GRAY
+				: BufferedImage.TYPE_3BYTE_BGR);
+		final byte[] data = ((DataBufferByte) result.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) Math.max(0, Math.min(255, Math.round(values[i] * scale)));
+		}
+		try {
+			ImageIO.write(result, "png", new File(fileName + ".png"));
+		} catch (final IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
 	private ImageUtils() {
 		// empty
 	}
 
+	/**
+	 * Same outputs as lumMedian, but over every file, streamed a band of rows at a time
+	 *
+	 * @param files
+	 * @param heapBudgetBytes
+	 *          how much memory the per-frame bands may use, decides the band height
+	 */
+	public static void lumMedianStreaming(final SortedSet<File> files, final long heapBudgetBytes) {
+		new Stacker(files, heapBudgetBytes).write();
+	}
+
 	public void lumMedian(final SortedSet<File> files) {
 
 		// Original image data
@@ -177,20 +529,22 @@ public class ImageUtils {
 
 		// Find the median lum value
 		// Find the average pixel color for all frames matching that particular lum value
-		final short[] median = new short[numPixels], sum = new short[numPixels], average = new short[numPixels];
+		final short[] median = new short[numPixels], average = new short[numPixels];
+		// A short overflows after about 128 bright frames
+		final int[] sum = new int[numPixels];
 		final List<short[]> lumAsList = new ArrayList<>(lums.values());
 
+		final ThreadLocal<LumHistogram> histograms = ThreadLocal.withInitial(LumHistogram::new);
 		IntStream.range(0, numPixels).parallel().forEach(pixelId -> {
-			final short[] oneFromEach = new short[lumAsList.size()];
-			IntStream.range(0, lumAsList.size()).parallel().forEach(frameId -> {
-				// assert frameId < oneFromEach.length;
-				// assert frameId < lumAsList.size();
-				// assert pixelId < lumAsList.get(frameId).length : "Frame " + frameId + " pixel not less than length:" +
-				// pixelId + " " + lumAsList.get(frameId).length;
-				oneFromEach[frameId] = lumAsList.get(frameId)[pixelId];
-				sum[pixelId] += oneFromEach[frameId];
-			});
-			median[pixelId] = median(oneFromEach);
+			final LumHistogram histogram = histograms.get();
+			int pixelSum = 0;
+			for (final short[] lum : lumAsList) {
+				histogram.add(lum[pixelId]);
+				pixelSum += lum[pixelId];
+			}
+			sum[pixelId] = pixelSum;
+			median[pixelId] = (short) histogram.getMedian();
+			histogram.clear();
 		});
 		// System.out.print(Arrays.toString(median));
 
@@ -200,8 +554,12 @@ public class ImageUtils {
 		}
 		LOG.log(Level.INFO, "Max of the averages:{0}", Shorts.max(average));
 
-		ImageUtils.writeImageBW("sum", sum, width, height, false);
+		final short[] sumShort = new short[numPixels];
+		for (int i = 0; i < sum.length; i++) {
+			sumShort[i] = (short) Math.min(Short.MAX_VALUE, sum[i]);
+		}
+		ImageUtils.writeImageBW("sum", sumShort, width, height, false);
 		ImageUtils.writeImageBW("median", median, width, height, false);
-		ImageUtils.writeImageBW("average", median, width, height, true);
+		ImageUtils.writeImageBW("average", average, width, height, true);
 	}
 }
@@ -0,0 +1,81 @@
+package info.benjaminhill.vst;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The innermost byte loops of gray conversion, detection and stacking. VectorKernels (built with -Psimd, run with
+ * --add-modules jdk.incubator.vector) does them with SIMD where that measured faster, otherwise ScalarKernels is used.
+ * -Dvst.simd=false forces the scalar version. Both give identical results.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public abstract class Kernels {
+
+	private static final Logger LOG = Logger.getLogger(Kernels.class.getName());
+
+	private static final Kernels INSTANCE = load();
+
+	private static Kernels load() {
+		if (!Boolean.parseBoolean(System.getProperty("vst.simd", "true"))) {
+			return new ScalarKernels();
+		}
+		try {
+			final Kernels vector = (Kernels) Class.forName("info.benjaminhill.vst.VectorKernels").getDeclaredConstructor()
+					.newInstance();
+			LOG.log(Level.INFO, "Using {0}", vector);
+			return vector;
+		} catch (final ReflectiveOperationException | LinkageError ex) {
+			LOG.log(Level.FINE, "SIMD kernels unavailable, using scalar", ex);
+			return new ScalarKernels();
+		}
+	}
+
+	/**
+	 * @return the fastest available implementation
+	 */
+	public static Kernels get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Integer BT.601 luma, same rounding as ImageUtils.getGray
+	 *
+	 * @param bgr
+	 *          interleaved B, G, R as in TYPE_3BYTE_BGR
+	 * @param gray
+	 *          one byte per pixel
+	 */
+	public abstract void bgrToGray(byte[] bgr, byte[] gray);
+
+	/**
+	 * @param values
+	 * @param from
+	 *          inclusive
+	 * @param to
+	 *          exclusive, more than from
+	 * @return the largest unsigned value in the range
+	 */
+	public abstract int maxUnsigned(byte[] values, int from, int to);
+
+	/**
+	 * max[i] = unsigned max of max[i] and values[i]
+	 *
+	 * @param values
+	 * @param max
+	 */
+	public abstract void maxUnsigned(byte[] values, byte[] max);
+
+	/**
+	 * sum[i] += unsigned values[i]
+	 *
+	 * @param values
+	 * @param sum
+	 */
+	public abstract void addUnsigned(byte[] values, int[] sum);
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName();
+	}
+}
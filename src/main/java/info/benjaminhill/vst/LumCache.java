@@ -0,0 +1,348 @@
+package info.benjaminhill.vst;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * On-disk cache of each frame's decoded 8-bit luminance plane, so reruns skip the JPEG decode. Read back with
+ * positioned reads, or a memory map for strided access. A cache file is stale when it was written for another path,
+ * the source's size changes, or its mtime changes and its content hash no longer matches. A touched but unchanged
+ * source has its new mtime written back, so it is only hashed once.
+ *
+ * <pre>
+ * int    magic "VSTL"
+ * int    version
+ * int    width
+ * int    height
+ * long   source mtime
+ * long   source size
+ * long   source hash (murmur3)
+ * int    path length, then UTF-8 source path
+ * byte[] width * height luminance
+ * </pre>
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class LumCache {
+
+	private static final int MAGIC = 0x5653544C; // VSTL
+	private static final int VERSION = 2;
+	private static final Path CACHE_DIR = Paths.get("lum");
+	/**
+	 * Where the source mtime sits in the header
+	 */
+	private static final int MTIME_OFFSET = 4 * 4;
+	/**
+	 * Everything before the path bytes
+	 */
+	private static final int FIXED_HEADER_SIZE = 4 * 4 + 8 * 3 + 4;
+	/**
+	 * Cache files queued by writeLater but not yet written. When full, the caller writes its own.
+	 */
+	private static final int WRITE_QUEUE = 8;
+
+	/**
+	 * One thread, writing cache files off the decode threads
+	 */
+	private static final ExecutorService WRITER = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(WRITE_QUEUE), runnable -> {
+				final Thread thread = new Thread(runnable, "LumCache");
+				thread.setDaemon(true);
+				return thread;
+			}, new ThreadPoolExecutor.CallerRunsPolicy());
+
+	private static final Logger LOG = Logger.getLogger(LumCache.class.getName());
+
+	private static File getCacheFile(final File source) throws IOException {
+		final String canonical = source.getCanonicalPath();
+		return CACHE_DIR.resolve(Files.getNameWithoutExtension(canonical) + "_" + Hashing.murmur3_32().hashString(
+				canonical, StandardCharsets.UTF_8) + ".lum").toFile();
+	}
+
+	private static long getHash(final File source) throws IOException {
+		return Files.hash(source, Hashing.murmur3_128()).asLong();
+	}
+
+	/**
+	 * Luminance of the image, from the cache when fresh, otherwise decoded and cached
+	 *
+	 * @param source
+	 * @return TYPE_BYTE_GRAY image
+	 */
+	public static BufferedImage getGray(final File source) {
+		final BufferedImage cached = getGrayBand(source, 0, -1);
+		if (cached != null) {
+			return cached;
+		}
+		final BufferedImage gray = ImageUtils.decodeGray(source);
+		write(source, gray);
+		return gray;
+	}
+
+	/**
+	 * Rows [y, y + rows) read straight from the cache file into the image, nothing is mapped
+	 *
+	 * @param source
+	 * @param y
+	 *          first row
+	 * @param rows
+	 *          or -1 for the rest of the image
+	 * @return TYPE_BYTE_GRAY image, null if there is no fresh cache entry
+	 */
+	public static BufferedImage getGrayBand(final File source, final int y, final int rows) {
+		try {
+			final File cacheFile = getCacheFile(source);
+			if (!cacheFile.exists()) {
+				return null;
+			}
+			try (final FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+				final Header header = readHeader(channel, cacheFile, source);
+				if (header == null) {
+					return null;
+				}
+				final BufferedImage band = ImageUtils.borrowGray(header.width, rows < 0 ? header.height - y : rows);
+				final ByteBuffer lum = ByteBuffer.wrap(((DataBufferByte) band.getRaster().getDataBuffer()).getData());
+				long position = header.offset + (long) y * header.width;
+				while (lum.hasRemaining()) {
+					final int read = channel.read(lum, position);
+					if (read < 0) {
+						throw new IOException("Truncated " + cacheFile);
+					}
+					position += read;
+				}
+				return band;
+			}
+		} catch (final IOException ex) {
+			LOG.log(Level.WARNING, "Unable to read cache for " + source, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * @param source
+	 * @return true if there is a fresh cache entry, only reads its header
+	 */
+	public static boolean isFresh(final File source) {
+		try {
+			final File cacheFile = getCacheFile(source);
+			if (!cacheFile.exists()) {
+				return false;
+			}
+			try (final FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+				return readHeader(channel, cacheFile, source) != null;
+			}
+		} catch (final IOException ex) {
+			LOG.log(Level.WARNING, "Unable to read cache for " + source, ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Zero-copy access to a cached luminance plane, for strided reads. Reading rows is cheaper with getGrayBand.
+	 *
+	 * @param source
+	 * @return null if there is no fresh cache entry
+	 */
+	public static Plane map(final File source) {
+		try {
+			final File cacheFile = getCacheFile(source);
+			if (!cacheFile.exists()) {
+				return null;
+			}
+			try (final FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+				final Header header = readHeader(channel, cacheFile, source);
+				if (header == null) {
+					return null;
+				}
+				return new Plane(header.width, header.height, channel.map(FileChannel.MapMode.READ_ONLY, header.offset,
+						(long) header.width * header.height));
+			}
+		} catch (final IOException ex) {
+			LOG.log(Level.WARNING, "Unable to read cache for " + source, ex);
+			return null;
+		}
+	}
+
+	private static class Header {
+		final int width, height;
+		/**
+		 * Of the first pixel
+		 */
+		final long offset;
+
+		Header(final int width, final int height, final long offset) {
+			this.width = width;
+			this.height = height;
+			this.offset = offset;
+		}
+	}
+
+	/**
+	 * Checks the header against the source, including that it is the source's entry and not one whose name collided
+	 *
+	 * @return null if stale
+	 */
+	private static Header readHeader(final FileChannel channel, final File cacheFile, final File source)
+			throws IOException {
+		final ByteBuffer fixed = ByteBuffer.allocate(FIXED_HEADER_SIZE);
+		while (fixed.hasRemaining() && channel.read(fixed, fixed.position()) >= 0) {
+			// until full or EOF
+		}
+		if (fixed.hasRemaining()) {
+			return null;
+		}
+		fixed.flip();
+		if (fixed.getInt() != MAGIC || fixed.getInt() != VERSION) {
+			return null;
+		}
+		final int width = fixed.getInt(), height = fixed.getInt();
+		final long mtime = fixed.getLong(), size = fixed.getLong(), hash = fixed.getLong();
+		final byte[] expected = source.getCanonicalPath().getBytes(StandardCharsets.UTF_8);
+		if (fixed.getInt() != expected.length) {
+			return null;
+		}
+		final ByteBuffer path = ByteBuffer.allocate(expected.length);
+		while (path.hasRemaining() && channel.read(path, FIXED_HEADER_SIZE + path.position()) >= 0) {
+			// until full or EOF
+		}
+		final long offset = FIXED_HEADER_SIZE + expected.length;
+		if (!Arrays.equals(path.array(), expected) || size != source.length() || (long) width * height != channel.size()
+				- offset) {
+			return null;
+		}
+		if (mtime != source.lastModified()) {
+			if (hash != getHash(source)) {
+				return null;
+			}
+			LOG.log(Level.FINE, "{0} touched but unchanged", source);
+			// Take the new mtime, so the next read doesn't hash the source again
+			try (final FileChannel header = FileChannel.open(cacheFile.toPath(), StandardOpenOption.WRITE)) {
+				header.write(ByteBuffer.allocate(8).putLong(0, source.lastModified()), MTIME_OFFSET);
+			}
+		}
+		return new Header(width, height, offset);
+	}
+
+	/**
+	 * Writes the cache entry for source. Written to a temp file and moved into place, so parallel writers of the same
+	 * frame can't leave a torn file.
+	 *
+	 * @param source
+	 * @param gray
+	 *          TYPE_BYTE_GRAY image
+	 */
+	public static void write(final File source, final BufferedImage gray) {
+		try {
+			write(source, gray.getWidth(), gray.getHeight(), ((DataBufferByte) gray.getRaster().getDataBuffer()).getData(),
+					getHash(source));
+		} catch (final IOException ex) {
+			LOG.log(Level.WARNING, "Unable to write cache for " + source, ex);
+		}
+	}
+
+	/**
+	 * Same as write, for an image decoded from the source's bytes already in memory, off the calling thread. The hash
+	 * comes from those bytes instead of reading the source again. The caller keeps gray, the plane is copied.
+	 *
+	 * @param source
+	 * @param gray
+	 *          TYPE_BYTE_GRAY image
+	 * @param contents
+	 *          the source's bytes that gray was decoded from
+	 */
+	public static void writeLater(final File source, final BufferedImage gray, final byte[] contents) {
+		final int width = gray.getWidth(), height = gray.getHeight();
+		final byte[] lum = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData().clone();
+		WRITER.execute(() -> {
+			try {
+				write(source, width, height, lum, Hashing.murmur3_128().hashBytes(contents).asLong());
+			} catch (final IOException ex) {
+				LOG.log(Level.WARNING, "Unable to write cache for " + source, ex);
+			}
+		});
+	}
+
+	/**
+	 * Waits for every writeLater queued so far
+	 */
+	public static void flush() {
+		try {
+			WRITER.submit(() -> {
+				// everything before this has run
+			}).get();
+		} catch (final ExecutionException ex) {
+			throw new RuntimeException(ex);
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		}
+	}
+
+	private static void write(final File source, final int width, final int height, final byte[] lum, final long hash)
+			throws IOException {
+		final File cacheFile = getCacheFile(source);
+		Files.createParentDirs(cacheFile);
+		final byte[] path = source.getCanonicalPath().getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_SIZE + path.length);
+		header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+		header.putLong(source.lastModified()).putLong(source.length()).putLong(hash);
+		header.putInt(path.length).put(path);
+		header.flip();
+
+		final File tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getParentFile());
+		try (final FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.WRITE)) {
+			final ByteBuffer[] buffers = { header, ByteBuffer.wrap(lum) };
+			while (buffers[1].hasRemaining()) {
+				channel.write(buffers);
+			}
+		}
+		java.nio.file.Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * A luminance plane, one unsigned byte per pixel, row major
+	 */
+	public static class Plane {
+
+		/**
+		 *
+		 */
+		public final int width, height;
+
+		/**
+		 * Positioned at the first pixel
+		 */
+		public final ByteBuffer lum;
+
+		Plane(final int width, final int height, final ByteBuffer lum) {
+			this.width = width;
+			this.height = height;
+			this.lum = lum;
+		}
+	}
+
+	private LumCache() {
+		// empty
+	}
+}
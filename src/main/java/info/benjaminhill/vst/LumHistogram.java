@@ -0,0 +1,110 @@
+package info.benjaminhill.vst;
+
+import java.util.Arrays;
+
+/**
+ * Counting histogram of 8-bit luminance values. Finds the exact median (or any percentile) of a pixel's stack in linear
+ * time without sorting. Reuse one per thread: clear() only touches the bins that were used.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class LumHistogram {
+
+	/**
+	 * @param percentile
+	 *          0.0 to 1.0
+	 * @param count
+	 * @return index into the sorted values, 0.5 gives count/2 (the upper median for even counts)
+	 */
+	static int getRank(final double percentile, final int count) {
+		return Math.max(0, Math.min(count - 1, (int) (percentile * count)));
+	}
+
+	private final int[] bins = new int[256];
+	private int count = 0;
+	private int minLum = 255, maxLum = 0;
+
+	/**
+	 * @param lum
+	 *          0-255
+	 */
+	public void add(final int lum) {
+		bins[lum]++;
+		count++;
+		if (lum < minLum) {
+			minLum = lum;
+		}
+		if (lum > maxLum) {
+			maxLum = lum;
+		}
+	}
+
+	/**
+	 * Empty the histogram, ready for the next pixel
+	 */
+	public void clear() {
+		if (count > 0) {
+			for (int lum = minLum; lum <= maxLum; lum++) {
+				bins[lum] = 0;
+			}
+		}
+		count = 0;
+		minLum = 255;
+		maxLum = 0;
+	}
+
+	/**
+	 * @return how many values were added
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return median value, same as the middle of the sorted values
+	 */
+	public int getMedian() {
+		return select(getRank(0.5, count));
+	}
+
+	/**
+	 * Several percentiles in one walk over the bins
+	 *
+	 * @param ranks
+	 *          ascending indexes into the sorted values, see getRank
+	 * @param result
+	 *          one value per rank
+	 */
+	public void select(final int[] ranks, final int[] result) {
+		assert count > 0;
+		for (int r = 1; r < ranks.length; r++) {
+			if (ranks[r] < ranks[r - 1]) {
+				throw new IllegalArgumentException("Ranks must be ascending: " + Arrays.toString(ranks));
+			}
+		}
+		int seen = 0, r = 0;
+		for (int lum = minLum; lum <= maxLum && r < ranks.length; lum++) {
+			seen += bins[lum];
+			while (r < ranks.length && ranks[r] < seen) {
+				result[r++] = lum;
+			}
+		}
+	}
+
+	/**
+	 * @param rank
+	 *          index into the sorted values
+	 * @return
+	 */
+	public int select(final int rank) {
+		assert count > 0;
+		int seen = 0;
+		for (int lum = minLum; lum < maxLum; lum++) {
+			seen += bins[lum];
+			if (rank < seen) {
+				return lum;
+			}
+		}
+		return maxLum;
+	}
+}
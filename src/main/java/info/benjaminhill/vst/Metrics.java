@@ -0,0 +1,424 @@
+package info.benjaminhill.vst;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Run-wide timers, counters and queue depths. Cheap enough to leave on: a stage records with one nanoTime at the
+ * start and one call at the end. Everything is visible live over JMX under info.benjaminhill.vst, and dumped to
+ * reports/ as JSON at the end of a run so throughput can be compared between runs.
+ *
+ * <pre>
+ * final long start = System.nanoTime();
+ * ...
+ * Metrics.time(Metrics.Stage.DECODE, start);
+ * </pre>
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class Metrics {
+
+	/**
+	 * Timed stages. Nested stages (a DECODE that converts color to gray) are counted in both.
+	 */
+	public enum Stage {
+		CATALOG, EXIF, DECODE, GRAY, DETECT, DB_WRITE, LINK, ALIGN, PTO_WRITE, STACK, CALIBRATE
+	}
+
+	/**
+	 * Running totals
+	 */
+	public enum Count {
+		FILES, FRAMES, PIXELS, ROWS, TRAILS, CONTROL_POINTS
+	}
+
+	/**
+	 * Sampled depths, the high-water mark is what ends up in the report
+	 */
+	public enum Gauge {
+		WRITE_QUEUE, READ_AHEAD
+	}
+
+	/**
+	 * JMX view of one stage
+	 */
+	public interface StageMXBean {
+
+		long getCount();
+
+		double getTotalMillis();
+
+		double getMeanMillis();
+
+		double getP50Millis();
+
+		double getP99Millis();
+
+		double getMaxMillis();
+	}
+
+	/**
+	 * JMX view of the counters, gauges and heap
+	 */
+	public interface RunMXBean {
+
+		Map<String, Long> getCounts();
+
+		Map<String, Long> getGauges();
+
+		Map<String, Long> getGaugeHighWater();
+
+		long getHeapPeakBytes();
+
+		double getElapsedSeconds();
+	}
+
+	/**
+	 * Log-linear histogram, 4 buckets per power of two of nanoseconds, so any percentile is within 25%
+	 */
+	static class StageTimer implements StageMXBean {
+
+		private static final int SUB_BUCKETS = 4;
+
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNs = new LongAdder();
+		private final AtomicLong maxNs = new AtomicLong();
+		private final AtomicLongArray histogram = new AtomicLongArray(64 * SUB_BUCKETS);
+
+		static int getBucket(final long ns) {
+			if (ns < SUB_BUCKETS) {
+				return (int) Math.max(0, ns);
+			}
+			final int msb = 63 - Long.numberOfLeadingZeros(ns);
+			return (msb * SUB_BUCKETS) + (int) ((ns >>> (msb - 2)) & (SUB_BUCKETS - 1));
+		}
+
+		/**
+		 * Largest value that lands in the bucket
+		 */
+		static long getUpperNs(final int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			final int msb = bucket / SUB_BUCKETS, sub = bucket % SUB_BUCKETS;
+			return ((SUB_BUCKETS + sub + 1L) << (msb - 2)) - 1;
+		}
+
+		void record(final long ns) {
+			count.increment();
+			totalNs.add(ns);
+			maxNs.accumulateAndGet(ns, Math::max);
+			histogram.incrementAndGet(getBucket(ns));
+		}
+
+		void reset() {
+			count.reset();
+			totalNs.reset();
+			maxNs.set(0);
+			for (int i = 0; i < histogram.length(); i++) {
+				histogram.set(i, 0);
+			}
+		}
+
+		double getPercentileMillis(final double p) {
+			final long total = getCount();
+			if (total == 0) {
+				return 0;
+			}
+			final long rank = (long) Math.ceil(p * total);
+			long seen = 0;
+			for (int i = 0; i < histogram.length(); i++) {
+				seen += histogram.get(i);
+				if (seen >= rank) {
+					return Math.min(getUpperNs(i), maxNs.get()) / 1e6;
+				}
+			}
+			return getMaxMillis();
+		}
+
+		@Override
+		public long getCount() {
+			return count.sum();
+		}
+
+		@Override
+		public double getTotalMillis() {
+			return totalNs.sum() / 1e6;
+		}
+
+		@Override
+		public double getMeanMillis() {
+			final long n = getCount();
+			return n == 0 ? 0 : getTotalMillis() / n;
+		}
+
+		@Override
+		public double getP50Millis() {
+			return getPercentileMillis(0.50);
+		}
+
+		@Override
+		public double getP99Millis() {
+			return getPercentileMillis(0.99);
+		}
+
+		@Override
+		public double getMaxMillis() {
+			return maxNs.get() / 1e6;
+		}
+	}
+
+	private static class Run implements RunMXBean {
+
+		@Override
+		public Map<String, Long> getCounts() {
+			final Map<String, Long> result = new LinkedHashMap<>();
+			for (final Count count : Count.values()) {
+				result.put(count.name(), COUNTS[count.ordinal()].sum());
+			}
+			return result;
+		}
+
+		@Override
+		public Map<String, Long> getGauges() {
+			final Map<String, Long> result = new LinkedHashMap<>();
+			for (final Gauge gauge : Gauge.values()) {
+				result.put(gauge.name(), GAUGES.get(gauge.ordinal()));
+			}
+			return result;
+		}
+
+		@Override
+		public Map<String, Long> getGaugeHighWater() {
+			final Map<String, Long> result = new LinkedHashMap<>();
+			for (final Gauge gauge : Gauge.values()) {
+				result.put(gauge.name(), GAUGE_HIGH_WATER.get(gauge.ordinal()));
+			}
+			return result;
+		}
+
+		/**
+		 * Sum of each heap pool's peak, an upper bound on the real peak since the pools don't peak together
+		 */
+		@Override
+		public long getHeapPeakBytes() {
+			long peak = 0;
+			for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+					peak += pool.getPeakUsage().getUsed();
+				}
+			}
+			return peak;
+		}
+
+		@Override
+		public double getElapsedSeconds() {
+			return (System.nanoTime() - startNs) / 1e9;
+		}
+	}
+
+	private static final String DOMAIN = "info.benjaminhill.vst";
+	private static final File REPORT_DIR = new File("reports");
+
+	private static final Logger LOG = Logger.getLogger(Metrics.class.getName());
+
+	private static final StageTimer[] TIMERS = new StageTimer[Stage.values().length];
+	private static final LongAdder[] COUNTS = new LongAdder[Count.values().length];
+	private static final AtomicLongArray GAUGES = new AtomicLongArray(Gauge.values().length);
+	private static final AtomicLongArray GAUGE_HIGH_WATER = new AtomicLongArray(Gauge.values().length);
+	private static final Run RUN = new Run();
+	private static volatile long startNs = System.nanoTime();
+	private static volatile long startMs = System.currentTimeMillis();
+
+	static {
+		for (int i = 0; i < TIMERS.length; i++) {
+			TIMERS[i] = new StageTimer();
+		}
+		for (int i = 0; i < COUNTS.length; i++) {
+			COUNTS[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param stage
+	 * @param startNs
+	 *          System.nanoTime() when the stage started
+	 */
+	public static void time(final Stage stage, final long startNs) {
+		TIMERS[stage.ordinal()].record(System.nanoTime() - startNs);
+	}
+
+	/**
+	 * @param count
+	 * @param delta
+	 */
+	public static void add(final Count count, final long delta) {
+		COUNTS[count.ordinal()].add(delta);
+	}
+
+	/**
+	 * @param gauge
+	 * @param value
+	 *          current depth
+	 */
+	public static void gauge(final Gauge gauge, final long value) {
+		GAUGES.set(gauge.ordinal(), value);
+		GAUGE_HIGH_WATER.accumulateAndGet(gauge.ordinal(), value, Math::max);
+	}
+
+	/**
+	 * @param stage
+	 * @return live view
+	 */
+	public static StageMXBean get(final Stage stage) {
+		return TIMERS[stage.ordinal()];
+	}
+
+	/**
+	 * @param count
+	 * @return
+	 */
+	public static long get(final Count count) {
+		return COUNTS[count.ordinal()].sum();
+	}
+
+	/**
+	 * Zero everything, including the JVM's heap peaks, and restart the run clock
+	 */
+	public static void reset() {
+		for (final StageTimer timer : TIMERS) {
+			timer.reset();
+		}
+		for (final LongAdder count : COUNTS) {
+			count.reset();
+		}
+		for (int i = 0; i < GAUGES.length(); i++) {
+			GAUGES.set(i, 0);
+			GAUGE_HIGH_WATER.set(i, 0);
+		}
+		ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+		startNs = System.nanoTime();
+		startMs = System.currentTimeMillis();
+	}
+
+	/**
+	 * Publish on the platform MBeanServer (jconsole, VisualVM). Safe to call more than once.
+	 */
+	public static void register() {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			final ObjectName runName = new ObjectName(DOMAIN + ":type=Run");
+			if (!server.isRegistered(runName)) {
+				server.registerMBean(RUN, runName);
+			}
+			for (final Stage stage : Stage.values()) {
+				final ObjectName stageName = new ObjectName(DOMAIN + ":type=Stage,name=" + stage.name());
+				if (!server.isRegistered(stageName)) {
+					server.registerMBean(TIMERS[stage.ordinal()], stageName);
+				}
+			}
+		} catch (final JMException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * @return the run so far as a JSON object
+	 */
+	public static String toJson() {
+		final StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"start\": \"").append(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date(startMs)))
+				.append("\",\n");
+		json.append("  \"elapsedSeconds\": ").append(fmt(RUN.getElapsedSeconds())).append(",\n");
+		json.append("  \"cores\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+		json.append("  \"maxHeapBytes\": ").append(Runtime.getRuntime().maxMemory()).append(",\n");
+		json.append("  \"heapPeakBytes\": ").append(RUN.getHeapPeakBytes()).append(",\n");
+		json.append("  \"framesPerSecond\": ").append(fmt(get(Count.FRAMES) / Math.max(1e-9, RUN.getElapsedSeconds())))
+				.append(",\n");
+
+		json.append("  \"stages\": {");
+		String sep = "\n";
+		for (final Stage stage : Stage.values()) {
+			final StageTimer timer = TIMERS[stage.ordinal()];
+			json.append(sep).append("    \"").append(stage.name()).append("\": {");
+			json.append("\"count\": ").append(timer.getCount());
+			json.append(", \"totalMs\": ").append(fmt(timer.getTotalMillis()));
+			json.append(", \"meanMs\": ").append(fmt(timer.getMeanMillis()));
+			json.append(", \"p50Ms\": ").append(fmt(timer.getP50Millis()));
+			json.append(", \"p90Ms\": ").append(fmt(timer.getPercentileMillis(0.90)));
+			json.append(", \"p99Ms\": ").append(fmt(timer.getP99Millis()));
+			json.append(", \"maxMs\": ").append(fmt(timer.getMaxMillis()));
+			json.append("}");
+			sep = ",\n";
+		}
+		json.append("\n  },\n");
+
+		json.append("  \"counts\": ").append(toJson(RUN.getCounts())).append(",\n");
+		json.append("  \"gaugeHighWater\": ").append(toJson(RUN.getGaugeHighWater())).append("\n");
+		json.append("}\n");
+		return json.toString();
+	}
+
+	private static String toJson(final Map<String, Long> values) {
+		final StringBuilder json = new StringBuilder("{");
+		String sep = "";
+		for (final Map.Entry<String, Long> ent : values.entrySet()) {
+			json.append(sep).append('"').append(ent.getKey()).append("\": ").append(ent.getValue());
+			sep = ", ";
+		}
+		return json.append('}').toString();
+	}
+
+	private static String fmt(final double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	/**
+	 * Logs a one line summary per stage and writes reports/run-yyyyMMdd-HHmmss.json
+	 *
+	 * @return the report file
+	 */
+	public static File writeReport() {
+		for (final Stage stage : Stage.values()) {
+			final StageTimer timer = TIMERS[stage.ordinal()];
+			if (timer.getCount() > 0) {
+				LOG.log(Level.INFO, "{0}: {1} calls, {2}ms total, p50 {3}ms, p99 {4}ms", new Object[] { stage, timer
+						.getCount(), fmt(timer.getTotalMillis()), fmt(timer.getP50Millis()), fmt(timer.getP99Millis()) });
+			}
+		}
+		REPORT_DIR.mkdirs();
+		final File report = new File(REPORT_DIR, "run-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(
+				startMs)) + ".json");
+		try {
+			Files.write(report.toPath(), toJson().getBytes(StandardCharsets.UTF_8));
+		} catch (final IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		LOG.log(Level.INFO, "Run report: {0}", report);
+		return report;
+	}
+
+	private Metrics() {
+		// empty
+	}
+}
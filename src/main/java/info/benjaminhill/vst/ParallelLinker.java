@@ -0,0 +1,229 @@
+package info.benjaminhill.vst;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Links pixels into trails on all cores.
+ * <p>
+ * The stars drift across the whole frame, so the sky doesn't split into independent areas; the night is split in time
+ * instead. Each segment, about the same number of detections, is linked through its own TrailGrid starting WARM_UP_MS
+ * early. By the segment's first frame that warm-up has rebuilt the trails sequential linking would have open, so the
+ * segment links its own frames the same way. At each boundary a trail is then handed over through its last warm-up
+ * pixel to the trail the segment before put that pixel in. Trails only differ from one TrailGrid over the whole night
+ * where the warm-up didn't rebuild the same open trails, about 2% of long trails on a dense SyntheticSky.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class ParallelLinker {
+
+	/**
+	 * Fewer than this per segment isn't worth a thread and a warm-up
+	 */
+	private static final int MIN_SEGMENT_DETECTIONS = 20_000;
+
+	/**
+	 * Linking starts this long before each segment. MAX_TS_GAP covers every trail still open at the boundary, the rest
+	 * lets those trails settle into the same pixels as sequential linking.
+	 */
+	private static final long WARM_UP_MS = 2L * PixelTrail.MAX_TS_GAP;
+
+	private static final Logger LOG = Logger.getLogger(ParallelLinker.class.getName());
+
+	/**
+	 * Deterministic output order
+	 */
+	private static final Comparator<PixelTrail> TRAIL_ORDER = Comparator.<PixelTrail>comparingLong(t -> t
+			.getFirstFrame().getTs()).thenComparingInt(PixelTrail::getFirstY).thenComparingInt(PixelTrail::getFirstX);
+
+	/**
+	 * One boundary, decided without changing any trail. earlier.get(i) continues with later.get(i) from its first frame
+	 * at or after the boundary. kept are the later segment's trails that start their own trail there.
+	 */
+	private static class Stitch {
+		final long boundaryTs;
+		final List<PixelTrail> earlier = new ArrayList<>(), later = new ArrayList<>(), kept = new ArrayList<>();
+
+		Stitch(final long boundaryTs) {
+			this.boundaryTs = boundaryTs;
+		}
+	}
+
+	/**
+	 * @param frames
+	 *          with their detections, each frame's offered brightest first
+	 * @return every trail, ordered by first frame then first pixel location
+	 */
+	public static List<PixelTrail> link(final SortedSet<Frame> frames) {
+		return link(frames, SkyRotation.NONE);
+	}
+
+	/**
+	 * @param frames
+	 *          with their detections, each frame's offered brightest first
+	 * @param motion
+	 *          linking is in derotated coordinates
+	 * @return every trail, ordered by first frame then first pixel location
+	 */
+	public static List<PixelTrail> link(final SortedSet<Frame> frames, final SkyRotation motion) {
+		final long start = System.nanoTime();
+		final Frame[] frameArray = frames.toArray(new Frame[frames.size()]);
+		final int[] segmentStart = getSegments(frameArray);
+		final int segmentCount = segmentStart.length - 1;
+		// First warm-up frame of each segment, inside the segment before
+		final int[] warmUpStart = new int[segmentCount];
+		for (int s = 1; s < segmentCount; s++) {
+			final long warmUpTs = frameArray[segmentStart[s]].getTs() - WARM_UP_MS;
+			int f = segmentStart[s];
+			while (f > 0 && frameArray[f - 1].getTs() >= warmUpTs) {
+				f--;
+			}
+			warmUpStart[s] = f;
+		}
+		LOG.log(Level.INFO, "Linking {0} frames in {1} time segments", new Object[] { frameArray.length, segmentCount });
+
+		final List<List<PixelTrail>> segments = IntStream.range(0, segmentCount).parallel().mapToObj(s -> link(frameArray,
+				warmUpStart[s], segmentStart[s + 1], motion)).collect(Collectors.toList());
+		final List<Stitch> stitches = IntStream.range(1, segmentCount).parallel().mapToObj(s -> stitch(frameArray,
+				warmUpStart[s], segmentStart[s], segments.get(s - 1), segments.get(s))).collect(Collectors.toList());
+
+		// Last boundary first, so every append copies a trail that is already complete
+		for (int i = stitches.size() - 1; i >= 0; i--) {
+			final Stitch stitch = stitches.get(i);
+			for (int j = 0; j < stitch.earlier.size(); j++) {
+				final PixelTrail later = stitch.later.get(j);
+				stitch.earlier.get(j).append(later, getFirstAtOrAfter(later, stitch.boundaryTs));
+			}
+			for (int j = 0; j < stitch.kept.size(); j++) {
+				final int from = getFirstAtOrAfter(stitch.kept.get(j), stitch.boundaryTs);
+				if (from > 0) {
+					final PixelTrail own = new PixelTrail();
+					own.append(stitch.kept.get(j), from);
+					stitch.kept.set(j, own);
+				}
+			}
+		}
+		// Every trail starts in the segment that keeps it, so sorting each sorts the night
+		final List<List<PixelTrail>> starting = new ArrayList<>(segmentCount);
+		starting.add(segments.get(0));
+		stitches.forEach(stitch -> starting.add(stitch.kept));
+		starting.parallelStream().forEach(trails -> trails.sort(TRAIL_ORDER));
+		final List<PixelTrail> result = new ArrayList<>(starting.stream().mapToInt(List::size).sum());
+		starting.forEach(result::addAll);
+		Metrics.time(Metrics.Stage.LINK, start);
+		return result;
+	}
+
+	/**
+	 * Sequential linking of frames from (inclusive) to to (exclusive)
+	 */
+	private static List<PixelTrail> link(final Frame[] frames, final int from, final int to, final SkyRotation motion) {
+		final TrailGrid activeTrails = new TrailGrid(motion);
+		final List<PixelTrail> finished = new ArrayList<>();
+		for (int f = from; f < to; f++) {
+			final Frame frame = frames[f];
+			activeTrails.expire(frame.getTs(), finished);
+			for (int i = 0; i < frame.getDetections().size(); i++) {
+				activeTrails.offer(frame, i);
+			}
+		}
+		finished.addAll(activeTrails.drain());
+		return finished;
+	}
+
+	/**
+	 * @param frames
+	 * @param warmUp
+	 *          first warm-up frame of the later segment
+	 * @param boundary
+	 *          first frame of the later segment
+	 * @param before
+	 *          trails of the earlier segment, they own the warm-up frames
+	 * @param after
+	 *          trails of the later segment, including its warm-up
+	 * @return
+	 */
+	private static Stitch stitch(final Frame[] frames, final int warmUp, final int boundary,
+			final List<PixelTrail> before, final List<PixelTrail> after) {
+		final long boundaryTs = frames[boundary].getTs();
+		final Stitch stitch = new Stitch(boundaryTs);
+		// Which earlier trail each warm-up detection is in
+		final PixelTrail[][] owner = new PixelTrail[boundary - warmUp][];
+		for (int f = warmUp; f < boundary; f++) {
+			owner[f - warmUp] = new PixelTrail[frames[f].getDetections().size()];
+		}
+		for (final PixelTrail trail : before) {
+			for (int i = trail.size() - 1; i >= 0 && trail.getFrame(i).getTs() >= frames[warmUp].getTs(); i--) {
+				owner[Arrays.binarySearch(frames, warmUp, boundary, trail.getFrame(i)) - warmUp][trail.getIndex(i)] = trail;
+			}
+		}
+		final Set<PixelTrail> continued = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (final PixelTrail trail : after) {
+			final int from = getFirstAtOrAfter(trail, boundaryTs);
+			if (from == trail.size()) {
+				// Entirely warm-up, the earlier segment has it
+				continue;
+			}
+			final PixelTrail earlier = from == 0 ? null : owner[Arrays.binarySearch(frames, warmUp, boundary, trail
+					.getFrame(from - 1)) - warmUp][trail.getIndex(from - 1)];
+			if (earlier != null && continued.add(earlier)) {
+				stitch.earlier.add(earlier);
+				stitch.later.add(trail);
+			} else {
+				stitch.kept.add(trail);
+			}
+		}
+		return stitch;
+	}
+
+	/**
+	 * @return position in the trail of the first frame at or after ts, size() if none
+	 */
+	private static int getFirstAtOrAfter(final PixelTrail trail, final long ts) {
+		int i = 0;
+		while (i < trail.size() && trail.getFrame(i).getTs() < ts) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Segments longer than the warm-up, so each warm-up is inside the segment before
+	 *
+	 * @return first frame of each segment, then frames.length
+	 */
+	private static int[] getSegments(final Frame[] frames) {
+		long total = 0;
+		for (final Frame frame : frames) {
+			total += frame.getDetections().size();
+		}
+		final int target = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), total
+				/ MIN_SEGMENT_DETECTIONS));
+		final int[] starts = new int[target + 1];
+		int count = 1;
+		long seen = 0;
+		for (int f = 0; f < frames.length - 1 && count < target; f++) {
+			seen += frames[f].getDetections().size();
+			if (seen * target >= total * count && frames[f + 1].getTs() - frames[starts[count - 1]].getTs()
+					> WARM_UP_MS) {
+				starts[count++] = f + 1;
+			}
+		}
+		starts[count] = frames.length;
+		return Arrays.copyOf(starts, count + 1);
+	}
+
+	private ParallelLinker() {
+		// empty
+	}
+}
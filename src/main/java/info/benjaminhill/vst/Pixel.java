@@ -1,6 +1,9 @@
 package info.benjaminhill.vst;
 
 import java.awt.Point;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.SortedSet;
@@ -8,6 +11,8 @@ import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import com.google.common.collect.ImmutableList;
+
 import info.benjaminhill.util.DBLite;
 
 /**
@@ -18,29 +23,57 @@ import info.benjaminhill.util.DBLite;
 public class Pixel implements Comparable<Pixel> {
 
 	private static final Logger LOG = Logger.getLogger(Pixel.class.getName());
+	private static final List<String> COLUMNS = ImmutableList.of("frame_id", "x", "y", "lum", "trail", "cx", "cy",
+			"flux", "area");
+	private static final String TABLE_COLUMNS = " frame_id integer" + ", x integer" + ", y integer" + ", lum integer"
+			+ ", trail integer" + ", cx real" + ", cy real" + ", flux integer" + ", area integer"
+			+ ", PRIMARY KEY (frame_id, x, y)";
 
 	/**
 	 * @param frame_id
 	 * @return
 	 */
 	public static SortedSet<Pixel> load(final long frame_id) {
-		return new ConcurrentSkipListSet<>(DBLite.DB.selectTable("select `rowid`,`x`,`y`,`lum` from pixel"
-				+ " WHERE `frame_id`=?", frame_id).rowMap().entrySet().stream().<Pixel>map(ent -> {
+		return new ConcurrentSkipListSet<>(DBLite.DB.selectTable("select `rowid`,`x`,`y`,`lum`,`cx`,`cy`,`flux`,`area`"
+				+ " from pixel WHERE `frame_id`=?", frame_id).rowMap().entrySet().stream().<Pixel>map(ent -> {
 					return new Pixel(ent.getValue());
 				}).collect(Collectors.toSet()));
 	}
 
+	/**
+	 * Every pixel in one query instead of one query per frame
+	 *
+	 * @return frame_id to that frame's pixels
+	 */
+	public static Map<Long, List<Pixel>> loadAll() {
+		final Map<Long, List<Pixel>> result = new HashMap<>();
+		DBLite.DB.selectTable("select `rowid`,`frame_id`,`x`,`y`,`lum`,`cx`,`cy`,`flux`,`area` from pixel"
+				+ " ORDER BY `frame_id`").rowMap().values().forEach(row -> {
+					result.computeIfAbsent(((Number) row.get("frame_id")).longValue(), id -> new ArrayList<>()).add(
+							new Pixel(row));
+				});
+		return result;
+	}
+
 	/**
 	 *
 	 */
 	public static void schema() {
 		// DBLite.DB.update("drop table if exists pixel");
 		if (!DBLite.DB.tableExists("pixel")) {
-			DBLite.DB.update("create table pixel (" + " frame_id integer" + ", x integer" + ", y integer" + ", lum integer"
-					+ ", trail integer" + ", PRIMARY KEY (frame_id, x, y)" + ", FOREIGN KEY(frame_id) REFERENCES frame(id)"
-					+ ")");
+			DBLite.DB.update("create table pixel (" + TABLE_COLUMNS + ", FOREIGN KEY(frame_id) REFERENCES frame(id)" + ")");
 			LOG.info("Created table `pixel`");
 		}
+		// Tables from before centroids, old rows read back as their integer location
+		Tables.addMissingColumns("pixel", "cx real", "cy real", "flux integer", "area integer");
+	}
+
+	/**
+	 * Same table in the connection's temp database, where it hides the real one until the connection closes. For
+	 * benchmarks, so they never touch a session's pixels.
+	 */
+	static void tempSchema() {
+		DBLite.DB.update("create temp table if not exists pixel (" + TABLE_COLUMNS + ")");
 	}
 
 	/**
@@ -52,6 +85,16 @@ public class Pixel implements Comparable<Pixel> {
 	 *
 	 */
 	public final short lum;
+
+	/**
+	 * Sub-pixel centroid, same as loc for single pixel detections
+	 */
+	public final double cx, cy;
+
+	/**
+	 * Summed lum above background, and how many pixels contributed
+	 */
+	public final int flux, area;
 	private int trail = -1;
 
 	/**
@@ -72,6 +115,29 @@ public class Pixel implements Comparable<Pixel> {
 		this.loc.x = x;
 		this.loc.y = y;
 		this.lum = (short) lum;
+		this.cx = x;
+		this.cy = y;
+		this.flux = lum;
+		this.area = 1;
+	}
+
+	/**
+	 * A blob of pixels
+	 *
+	 * @param cx
+	 * @param cy
+	 * @param peak
+	 * @param flux
+	 * @param area
+	 */
+	public Pixel(final double cx, final double cy, final int peak, final int flux, final int area) {
+		this.loc.x = (int) Math.round(cx);
+		this.loc.y = (int) Math.round(cy);
+		this.lum = (short) peak;
+		this.cx = cx;
+		this.cy = cy;
+		this.flux = flux;
+		this.area = area;
 	}
 
 	/**
@@ -81,21 +147,32 @@ public class Pixel implements Comparable<Pixel> {
 		this.loc.x = (Integer) row.get("x");
 		this.loc.y = (Integer) row.get("y");
 		this.lum = ((Number) row.get("lum")).shortValue();
+		this.cx = row.get("cx") != null ? ((Number) row.get("cx")).doubleValue() : loc.x;
+		this.cy = row.get("cy") != null ? ((Number) row.get("cy")).doubleValue() : loc.y;
+		this.flux = row.get("flux") != null ? ((Number) row.get("flux")).intValue() : lum;
+		this.area = row.get("area") != null ? ((Number) row.get("area")).intValue() : 1;
 		if (row.containsKey("trail")) {
 			trail = (Integer) row.get("trail");
 		}
 	}
 
 	/**
-	 * Order by descending lum
+	 * Order by descending lum, then row, then column. Consistent with equals, so sorted sets keep equally bright stars.
 	 *
 	 * @param other
-	 * @param o
 	 * @return
 	 */
 	@Override
 	public int compareTo(final Pixel other) {
-		return -1 * Short.compare(lum, other.lum);
+		int comp = Short.compare(other.lum, lum);
+		if (comp != 0) {
+			return comp;
+		}
+		comp = Integer.compare(loc.y, other.loc.y);
+		if (comp != 0) {
+			return comp;
+		}
+		return Integer.compare(loc.x, other.loc.x);
 	}
 
 	@Override
@@ -122,8 +199,21 @@ public class Pixel implements Comparable<Pixel> {
 	 * @return
 	 */
 	public Pixel save(final long frame_id) {
-		DBLite.DB.update("insert OR IGNORE into `pixel` (`frame_id`,`x`,`y`,`lum`,`trail`) VALUES(?,?,?,?,?)", frame_id,
-				loc.x, loc.y, lum, trail);
+		DBLite.DB.update(
+				"insert OR IGNORE into `pixel` (`frame_id`,`x`,`y`,`lum`,`trail`,`cx`,`cy`,`flux`,`area`) VALUES(?,?,?,?,?,?,?,?,?)",
+				frame_id, loc.x, loc.y, lum, trail, cx, cy, flux, area);
+		return this;
+	}
+
+	/**
+	 * Queued, written by the BatchWriter's thread
+	 *
+	 * @param writer
+	 * @param frame_id
+	 * @return
+	 */
+	public Pixel save(final BatchWriter writer, final long frame_id) {
+		writer.insert("pixel", COLUMNS, frame_id, loc.x, loc.y, lum, trail, cx, cy, flux, area);
 		return this;
 	}
 
@@ -141,7 +231,7 @@ public class Pixel implements Comparable<Pixel> {
 	 */
 	@Override
 	public String toString() {
-		return "{" + "x:" + loc.x + ", y:" + loc.y + ", lum:" + lum + '}';
+		return "{" + "x:" + loc.x + ", y:" + loc.y + ", lum:" + lum + ", flux:" + flux + ", area:" + area + '}';
 	}
 
 }
@@ -1,12 +1,12 @@
 package info.benjaminhill.vst;
 
-import java.util.Set;
-import java.util.SortedMap;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.logging.Logger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
- * Set of pixels within frames that form a star trail.
+ * Set of pixels within frames that form a star trail. Stored as parallel arrays of frame and index into that frame's
+ * Detections, in time order.
  *
  * @author benjaminhill@gmail.com
  */
@@ -15,14 +15,23 @@ public class PixelTrail implements Comparable<PixelTrail> {
 	/**
 	 * If you had a gap of this many ms, the trail has ended.
 	 */
-	private static final int MAX_TS_GAP = 1_000 * 60 * 5;
+	static final int MAX_TS_GAP = 1_000 * 60 * 5;
 
 	/**
 	 * How far a trail can jump between frames (to avoid cross-trail linking
 	 */
-	private static final double MAX_DISTANCE_SQ = 2;
-	private static final Logger LOG = Logger.getLogger(PixelTrail.class.getName());
-	private final SortedMap<Frame, Pixel> trail = new ConcurrentSkipListMap<>();
+	static final double MAX_DISTANCE_SQ = 2;
+
+	private static final int INITIAL_CAPACITY = 8;
+
+	private Frame[] frames = new Frame[INITIAL_CAPACITY];
+	private int[] indices = new int[INITIAL_CAPACITY];
+	private int size = 0;
+	/**
+	 * Copied out of the Detections, so sorting and ordering trails doesn't chase frames
+	 */
+	private short lastLum;
+	private int firstX, firstY, lastX, lastY;
 
 	/**
 	 * Order by descending lum
@@ -32,21 +41,97 @@ public class PixelTrail implements Comparable<PixelTrail> {
 	 */
 	@Override
 	public int compareTo(final PixelTrail other) {
-		int comp = Short.compare(this.getLastPixel().lum, other.getLastPixel().lum);
+		int comp = Short.compare(this.lastLum, other.lastLum);
 		if (comp != 0) {
 			// Descending lum
 			return -1 * comp;
 		}
-		comp = Integer.compare(this.trail.size(), other.trail.size());
+		comp = Integer.compare(this.size, other.size);
 		if (comp != 0) {
 			// Descending size
 			return -1 * comp;
 		}
-		comp = Integer.compare(this.getLastPixel().loc.y, other.getLastPixel().loc.y);
+		comp = Integer.compare(this.lastY, other.lastY);
 		if (comp != 0) {
 			return comp;
 		}
-		return Integer.compare(this.getLastPixel().loc.x, other.getLastPixel().loc.x);
+		return Integer.compare(this.lastX, other.lastX);
+	}
+
+	/**
+	 * Join a later segment of the same star onto this one, across a gap offerPixel won't link
+	 *
+	 * @param later
+	 *          starts after this trail ends
+	 */
+	void append(final PixelTrail later) {
+		append(later, 0);
+	}
+
+	/**
+	 * @param later
+	 *          starts after this trail ends, from position from on
+	 * @param from
+	 *          first position of later to copy
+	 */
+	void append(final PixelTrail later, final int from) {
+		assert size == 0 || later.getFrame(from).getTs() > getLastFrame().getTs();
+		final int count = later.size - from;
+		ensureCapacity(size + count);
+		System.arraycopy(later.frames, from, frames, size, count);
+		System.arraycopy(later.indices, from, indices, size, count);
+		if (size == 0) {
+			final Detections first = later.frames[from].getDetections();
+			firstX = first.getX(later.indices[from]);
+			firstY = first.getY(later.indices[from]);
+		}
+		size += count;
+		lastLum = later.lastLum;
+		lastX = later.lastX;
+		lastY = later.lastY;
+	}
+
+	private void add(final Frame frame, final int index) {
+		ensureCapacity(size + 1);
+		frames[size] = frame;
+		indices[size] = index;
+		final Detections detections = frame.getDetections();
+		lastLum = detections.getLum(index);
+		lastX = detections.getX(index);
+		lastY = detections.getY(index);
+		if (size == 0) {
+			firstX = lastX;
+			firstY = lastY;
+		}
+		size++;
+	}
+
+	private void ensureCapacity(final int capacity) {
+		if (capacity > frames.length) {
+			final int grown = Math.max(capacity, frames.length * 2);
+			frames = Arrays.copyOf(frames, grown);
+			indices = Arrays.copyOf(indices, grown);
+		}
+	}
+
+	/**
+	 * @return position of the frame, or negative if it isn't in this trail
+	 */
+	private int find(final Frame frame) {
+		final long ts = frame.getTs();
+		int lo = 0, hi = size - 1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			final long midTs = frames[mid].getTs();
+			if (midTs < ts) {
+				lo = mid + 1;
+			} else if (midTs > ts) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
 	}
 
 	/**
@@ -54,64 +139,121 @@ public class PixelTrail implements Comparable<PixelTrail> {
 	 * @return
 	 */
 	public boolean containsFrame(final Frame frame) {
-		return trail.containsKey(frame);
+		return find(frame) >= 0;
 	}
 
 	/**
 	 * @param frame
-	 * @return
+	 * @return null if the trail isn't in the frame
 	 */
 	public Pixel getByFrame(final Frame frame) {
-		return trail.get(frame);
+		final int i = find(frame);
+		return i < 0 ? null : getPixel(i);
 	}
 
 	/**
 	 * @return
 	 */
 	public long getDuration() {
-		return trail.lastKey().getTs() - trail.firstKey().getTs();
+		return getLastFrame().getTs() - getFirstFrame().getTs();
 	}
 
 	/**
 	 * @return
 	 */
 	public Frame getFirstFrame() {
-		return trail.firstKey();
+		return frames[0];
 	}
 
 	/**
 	 * @return
 	 */
 	public Pixel getFirstPixel() {
-		return trail.get(trail.firstKey());
+		return getPixel(0);
 	}
 
 	/**
+	 * @param i
+	 *          position in the trail, 0 is the first frame
 	 * @return
 	 */
-	public Set<Frame> getFrames() {
-		return trail.keySet();
+	public Frame getFrame(final int i) {
+		return frames[i];
+	}
+
+	/**
+	 * @return frames in time order
+	 */
+	public List<Frame> getFrames() {
+		return Collections.unmodifiableList(Arrays.asList(frames).subList(0, size));
+	}
+
+	/**
+	 * @param i
+	 *          position in the trail
+	 * @return index into getFrame(i).getDetections()
+	 */
+	public int getIndex(final int i) {
+		return indices[i];
 	}
 
 	/**
 	 * @return
 	 */
 	public Frame getLastFrame() {
-		return trail.lastKey();
+		return frames[size - 1];
 	}
 
 	/**
 	 * @return
 	 */
 	public Pixel getLastPixel() {
-		return trail.get(trail.lastKey());
+		return getPixel(size - 1);
+	}
+
+	/**
+	 * @return column of the first pixel
+	 */
+	int getFirstX() {
+		return firstX;
+	}
+
+	/**
+	 * @return row of the first pixel
+	 */
+	int getFirstY() {
+		return firstY;
+	}
+
+	/**
+	 * @return column of the last pixel
+	 */
+	int getLastX() {
+		return lastX;
+	}
+
+	/**
+	 * @return row of the last pixel
+	 */
+	int getLastY() {
+		return lastY;
+	}
+
+	/**
+	 * @param i
+	 *          position in the trail
+	 * @return a new Pixel
+	 */
+	public Pixel getPixel(final int i) {
+		return frames[i].getDetections().getPixel(indices[i]);
 	}
 
 	/**
 	 * @return
 	 */
 	public double getPixelDistanceSq() {
-		return trail.get(trail.firstKey()).loc.distanceSq(trail.get(trail.lastKey()).loc);
+		final double dx = firstX - lastX, dy = firstY - lastY;
+		return dx * dx + dy * dy;
 	}
 
 	/**
@@ -123,30 +265,63 @@ public class PixelTrail implements Comparable<PixelTrail> {
 	}
 
 	/**
-	 * Checks if this pixel is a good candidate (later frame and within range)
+	 * Checks if this detection is a good candidate (later frame and within range)
 	 *
 	 * @param frame
-	 * @param candidate
+	 * @param index
+	 *          into frame.getDetections()
 	 * @return
 	 */
-	public boolean offerPixel(final Frame frame, final Pixel candidate) {
-		if (!trail.isEmpty()) {
-
-			if (frame.getTs() <= this.getLastFrame().getTs()) {
+	public boolean offerPixel(final Frame frame, final int index) {
+		if (size > 0) {
+			if (!isLaterAndRecent(frame)) {
 				return false;
 			}
-
-			if (frame.getTs() - this.getLastFrame().getTs() > MAX_TS_GAP) {
+			final Detections detections = frame.getDetections();
+			final double dx = detections.getX(index) - getLastX(), dy = detections.getY(index) - getLastY();
+			if (dx * dx + dy * dy > MAX_DISTANCE_SQ) {
 				return false;
 			}
+		}
+		add(frame, index);
+		return true;
+	}
 
-			if (trail.get(trail.lastKey()).loc.distanceSq(candidate.loc) > MAX_DISTANCE_SQ) {
+	/**
+	 * Same as offerPixel, but the range is measured from where the motion model predicts the last pixel has moved to by
+	 * this frame, so larger gaps between frames still link.
+	 *
+	 * @param frame
+	 * @param index
+	 *          into frame.getDetections()
+	 * @param motion
+	 * @return
+	 */
+	public boolean offerPixel(final Frame frame, final int index, final SkyRotation motion) {
+		if (size > 0) {
+			if (!isLaterAndRecent(frame)) {
+				return false;
+			}
+			final Detections detections = frame.getDetections();
+			if (motion.predict(getLastX(), getLastY(), getLastFrame().getTs(), frame.getTs()).distanceSq(detections.getX(
+					index), detections.getY(index)) > MAX_DISTANCE_SQ) {
 				return false;
 			}
 		}
-
-		trail.put(frame, candidate);
+		add(frame, index);
 		return true;
 	}
 
+	private boolean isLaterAndRecent(final Frame frame) {
+		final long lastTs = getLastFrame().getTs();
+		return frame.getTs() > lastTs && frame.getTs() - lastTs <= MAX_TS_GAP;
+	}
+
+	/**
+	 * @return frames in the trail
+	 */
+	public int size() {
+		return size;
+	}
+
 }
@@ -0,0 +1,219 @@
+package info.benjaminhill.vst;
+
+import java.awt.Dimension;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hugin project (raw.pto) and trail dump (data.tsv) from the linked trails.
+ * <p>
+ * Each trail pairs every frame with its next few frames, and with the nearest anchor frame on either side so
+ * distant frames stay tied together. Per frame pair only the brightest trail in each cell of a GRID x GRID split of the
+ * image becomes a control point, so the optimiser gets a few well spread points per pair instead of every star.
+ * Output goes through one buffered writer per file without String.format.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class PtoWriter {
+
+	/**
+	 * A frame needs this many trails through it to be worth including
+	 */
+	private static final int MIN_TRAILS_FOR_USEFUL_FRAME = 5;
+	/**
+	 * Pair each frame with this many following frames
+	 */
+	private static final int NEAR_FRAMES = 3;
+	/**
+	 * Every nth useful frame is an anchor
+	 */
+	private static final int ANCHOR_EVERY = 10;
+	/**
+	 * Image split GRID x GRID, at most one control point per cell per frame pair
+	 */
+	private static final int GRID = 4;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final Logger LOG = Logger.getLogger(PtoWriter.class.getName());
+
+	/**
+	 * Writes raw.pto and data.tsv into dir
+	 *
+	 * @param trails
+	 * @param dir
+	 * @return control points written
+	 */
+	public static int write(final List<PixelTrail> trails, final Path dir) {
+		final long start = System.nanoTime();
+
+		// Useful frames get consecutive ids in time order
+		final SortedMap<Frame, Integer> usages = new TreeMap<>();
+		trails.forEach(trail -> trail.getFrames().forEach(frame -> usages.merge(frame, 1, Integer::sum)));
+		final Map<Frame, Integer> finalIds = new HashMap<>();
+		final SortedMap<Integer, Frame> byId = new TreeMap<>();
+		usages.forEach((frame, count) -> {
+			if (count >= MIN_TRAILS_FOR_USEFUL_FRAME) {
+				byId.put(finalIds.size(), frame);
+				finalIds.put(frame, finalIds.size());
+			}
+		});
+		LOG.log(Level.INFO, "Useful frames:{0} of {1}", new Object[] { finalIds.size(), usages.size() });
+		if (finalIds.isEmpty()) {
+			return 0;
+		}
+		final Dimension dim = ImageUtils.getDimension(new File(byId.get(0).getPath()));
+
+		// Best trail per grid cell per frame pair, packed as score << 32 | trail index + 1
+		final Map<Long, long[]> pairs = new HashMap<>();
+		try (final Writer tsv = open(dir.resolve("data.tsv"))) {
+			tsv.write("TRAIL_ID\tFRAME_ID\tX\tY\n");
+			final int[] ids = new int[usages.size()];
+			final Pixel[] points = new Pixel[usages.size()];
+			for (int t = 0; t < trails.size(); t++) {
+				final PixelTrail trail = trails.get(t);
+				int n = 0;
+				for (int f = 0; f < trail.size(); f++) {
+					final Integer id = finalIds.get(trail.getFrame(f));
+					if (id == null) {
+						continue;
+					}
+					ids[n] = id;
+					points[n] = trail.getPixel(f);
+					tsv.write(Integer.toString(t));
+					tsv.write('\t');
+					tsv.write(Integer.toString(id));
+					tsv.write('\t');
+					writeFixed(tsv, points[n].cx);
+					tsv.write('\t');
+					writeFixed(tsv, points[n].cy);
+					tsv.write('\n');
+					n++;
+				}
+				for (int i = 0; i < n; i++) {
+					for (int j = i + 1; j < n && (j - i <= NEAR_FRAMES); j++) {
+						offer(pairs, ids[i], ids[j], t, points[i], points[j], dim);
+					}
+					// Nearest anchors either side, further out than the near frames
+					for (int j = i + NEAR_FRAMES + 1; j < n; j++) {
+						if (ids[j] % ANCHOR_EVERY == 0) {
+							offer(pairs, ids[i], ids[j], t, points[i], points[j], dim);
+							break;
+						}
+					}
+					for (int j = i - NEAR_FRAMES - 1; j >= 0; j--) {
+						if (ids[j] % ANCHOR_EVERY == 0) {
+							offer(pairs, ids[j], ids[i], t, points[j], points[i], dim);
+							break;
+						}
+					}
+				}
+			}
+		} catch (final IOException ex) {
+			throw new RuntimeException(ex);
+		}
+
+		int controlPoints = 0;
+		try (final Writer pto = open(dir.resolve("raw.pto"))) {
+			pto.write("# hugin project file\n");
+			pto.write("#hugin_ptoversion 2\n");
+			// r:CROP - shifts the frames, bad
+			pto.write("p f3 w6000 v170  E1.97085 R0 n\"TIFF\"\n");
+			pto.write("m g1 i7 f3 m2 p0.00784314\n\n\n");
+			final String size = "i w" + dim.width + " h" + dim.height + " f3 ";
+			for (final Map.Entry<Integer, Frame> ent : byId.entrySet()) {
+				pto.write(size);
+				pto.write(ent.getKey() == 0 ? "v80 Vm5 n\""
+						: "v=0 a=0 b=0 c=0 d=0 e=0 g=0 t=0 Va=0 Vb=0 Vc=0 Vd=0 Vx=0 Vy=0 Vm5 n\"");
+				pto.write(ent.getValue().getPath());
+				pto.write("\"\n");
+			}
+
+			final Long[] keys = pairs.keySet().toArray(new Long[pairs.size()]);
+			Arrays.sort(keys);
+			for (final Long key : keys) {
+				final int id1 = (int) (key >>> 32), id2 = (int) (long) key;
+				final Frame frame1 = byId.get(id1), frame2 = byId.get(id2);
+				for (final long best : pairs.get(key)) {
+					if (best == 0) {
+						continue;
+					}
+					final PixelTrail trail = trails.get((int) best - 1);
+					final Pixel p1 = trail.getByFrame(frame1), p2 = trail.getByFrame(frame2);
+					pto.write("c n");
+					pto.write(Integer.toString(id1));
+					pto.write(" N");
+					pto.write(Integer.toString(id2));
+					pto.write(" x");
+					writeFixed(pto, p1.cx);
+					pto.write(" y");
+					writeFixed(pto, p1.cy);
+					pto.write(" X");
+					writeFixed(pto, p2.cx);
+					pto.write(" Y");
+					writeFixed(pto, p2.cy);
+					pto.write(" t0\n");
+					controlPoints++;
+				}
+			}
+		} catch (final IOException ex) {
+			throw new RuntimeException(ex);
+		}
+
+		Metrics.add(Metrics.Count.CONTROL_POINTS, controlPoints);
+		Metrics.time(Metrics.Stage.PTO_WRITE, start);
+		LOG.log(Level.INFO, "Control points:{0} across {1} frame pairs", new Object[] { controlPoints, pairs.size() });
+		return controlPoints;
+	}
+
+	/**
+	 * Keep the trail if it is the brightest so far in its cell for this pair
+	 */
+	private static void offer(final Map<Long, long[]> pairs, final int id1, final int id2, final int trailIndex,
+			final Pixel p1, final Pixel p2, final Dimension dim) {
+		final int cellX = Math.max(0, Math.min(GRID - 1, (int) ((p1.cx * GRID) / dim.width)));
+		final int cellY = Math.max(0, Math.min(GRID - 1, (int) ((p1.cy * GRID) / dim.height)));
+		final long[] cells = pairs.computeIfAbsent(((long) id1 << 32) | id2, key -> new long[GRID * GRID]);
+		final long packed = ((long) Math.min(p1.lum, p2.lum) << 32) | (trailIndex + 1);
+		final int cell = (cellY * GRID) + cellX;
+		if (packed > cells[cell]) {
+			cells[cell] = packed;
+		}
+	}
+
+	private static Writer open(final Path path) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path), StandardCharsets.UTF_8),
+				BUFFER_SIZE);
+	}
+
+	/**
+	 * Non-negative value with two decimals
+	 */
+	private static void writeFixed(final Writer out, final double value) throws IOException {
+		final long hundredths = Math.round(Math.max(0, value) * 100);
+		out.write(Long.toString(hundredths / 100));
+		out.write('.');
+		final int fraction = (int) (hundredths % 100);
+		if (fraction < 10) {
+			out.write('0');
+		}
+		out.write(Integer.toString(fraction));
+	}
+
+	private PtoWriter() {
+		// empty
+	}
+}
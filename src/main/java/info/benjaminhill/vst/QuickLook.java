@@ -0,0 +1,92 @@
+package info.benjaminhill.vst;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fast preview of a session: detection on subsampled frames, a rough trail count, and preview sum/max stacks. Only the
+ * catalog is written to the DB, so the full run doesn't read the EXIF again.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class QuickLook {
+
+	private static final Logger LOG = Logger.getLogger(QuickLook.class.getName());
+
+	/**
+	 * Keep every nth row and column
+	 */
+	private static final int SUBSAMPLE = 8;
+	/**
+	 * A trail must be at least this many frames to count
+	 */
+	private static final int TRAIL_MIN_FRAMES = 10;
+	private static final Brightest.Mode DETECTION_MODE = Brightest.Mode.BUCKETS;
+
+	/**
+	 * @param args
+	 */
+	public static void main(final String... args) {
+		System.setProperty("java.util.logging.SimpleFormatter.format", "%4$s: %5$s%n");
+		final long startMs = System.currentTimeMillis();
+		Catalog.schema();
+		// Unique timestamps from the catalog, so no two frames collapse into one in the set
+		final Catalog catalog = Catalog.scan(Paths.get("frames"), Runtime.getRuntime().availableProcessors());
+		final SortedSet<File> files = catalog.getFiles();
+		final SortedSet<Frame> frames = new ConcurrentSkipListSet<>();
+
+		final BufferedImage first = ImageUtils.getGraySubsampled(files.first(), SUBSAMPLE);
+		final int width = first.getWidth(), height = first.getHeight();
+		ImageUtils.recycle(first);
+		final int[] sum = new int[width * height];
+		final short[] max = new short[width * height];
+
+		files.parallelStream().forEach(file -> {
+			final BufferedImage gray = ImageUtils.getGraySubsampled(file, SUBSAMPLE);
+			if (gray.getWidth() != width || gray.getHeight() != height) {
+				LOG.log(Level.WARNING, "Skipping {0}, wrong size", file);
+				return;
+			}
+			// Coordinates stay subsampled, so the linker's distance limit scales with them
+			final Frame frame = catalog.getFrame(file);
+			frame.addPixels(Brightest.getBrightest(gray, DETECTION_MODE));
+			frames.add(frame);
+			final byte[] lum = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
+			synchronized (sum) {
+				for (int i = 0; i < lum.length; i++) {
+					final int value = lum[i] & 0xFF;
+					sum[i] += value;
+					if (value > max[i]) {
+						max[i] = (short) value;
+					}
+				}
+			}
+			ImageUtils.recycle(gray);
+		});
+		LOG.log(Level.INFO, "Detected in {0} frames", frames.size());
+
+		final List<PixelTrail> finishedTrails = ParallelLinker.link(frames);
+		final long longTrails = finishedTrails.stream().filter(t -> t.size() >= TRAIL_MIN_FRAMES).count();
+		LOG.log(Level.INFO, "Rough trails:{0} of at least {1} frames:{2}", new Object[] { finishedTrails.size(),
+				TRAIL_MIN_FRAMES, longTrails });
+
+		final short[] sumShort = new short[sum.length];
+		for (int i = 0; i < sum.length; i++) {
+			sumShort[i] = (short) Math.min(Short.MAX_VALUE, sum[i]);
+		}
+		ImageUtils.writeImageBW("preview_sum", sumShort, width, height, true);
+		ImageUtils.writeImageBW("preview_max", max, width, height, false);
+		LOG.log(Level.INFO, "Quick look done in {0}ms", System.currentTimeMillis() - startMs);
+	}
+
+	private QuickLook() {
+		// empty
+	}
+}
@@ -0,0 +1,41 @@
+package info.benjaminhill.vst;
+
+/**
+ * Plain loops, works on every JDK
+ *
+ * @author benjaminhill@gmail.com
+ */
+class ScalarKernels extends Kernels {
+
+	@Override
+	public void bgrToGray(final byte[] bgr, final byte[] gray) {
+		for (int i = 0, j = 0; i < gray.length; i++, j += 3) {
+			gray[i] = (byte) ((77 * (bgr[j + 2] & 0xFF) + 150 * (bgr[j + 1] & 0xFF) + 29 * (bgr[j] & 0xFF) + 128) >> 8);
+		}
+	}
+
+	@Override
+	public int maxUnsigned(final byte[] values, final int from, final int to) {
+		int max = 0;
+		for (int i = from; i < to; i++) {
+			max = Math.max(max, values[i] & 0xFF);
+		}
+		return max;
+	}
+
+	@Override
+	public void maxUnsigned(final byte[] values, final byte[] max) {
+		for (int i = 0; i < values.length; i++) {
+			if ((values[i] & 0xFF) > (max[i] & 0xFF)) {
+				max[i] = values[i];
+			}
+		}
+	}
+
+	@Override
+	public void addUnsigned(final byte[] values, final int[] sum) {
+		for (int i = 0; i < values.length; i++) {
+			sum[i] += values[i] & 0xFF;
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package info.benjaminhill.vst;
+
+import java.awt.Point;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Global motion of the sky across the image: a rotation about the celestial pole, or a plain drift when the pole is
+ * far outside the frame. Fitted from established trails as the velocity field v = (-w*y + a, w*x + b).
+ * <p>
+ * Linking in "derotated" coordinates (every position turned back to the start of the session) makes the prediction
+ * free: a star's derotated position stays put, and since rotation preserves distances, distance to the predicted
+ * position equals distance between derotated positions.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class SkyRotation {
+
+	/**
+	 * No motion, derotated positions are the plain positions
+	 */
+	public static final SkyRotation NONE = new SkyRotation(0, 0, 0, 0);
+
+	/**
+	 * Trails need at least this many points to contribute velocity samples
+	 */
+	private static final int MIN_TRAIL_POINTS = 5;
+	/**
+	 * Rounds of dropping outlier samples and refitting
+	 */
+	private static final int REJECTION_ROUNDS = 3;
+	/**
+	 * Samples further than this many median residuals from the fit are outliers
+	 */
+	private static final double REJECTION_FACTOR = 3;
+	/**
+	 * Below this angular velocity (radians per second) treat the motion as a drift
+	 */
+	private static final double MIN_OMEGA = 1e-12;
+
+	private static final Logger LOG = Logger.getLogger(SkyRotation.class.getName());
+
+	/**
+	 * Least squares fit of the velocity field to consecutive points of every long enough trail, with outlier rejection
+	 * (mislinked points, planes, hot pixels).
+	 *
+	 * @param trails
+	 * @return NONE if there is nothing to fit
+	 */
+	public static SkyRotation fit(final List<PixelTrail> trails) {
+		return fit(trails, null);
+	}
+
+	/**
+	 * Same, skipping some sightings. Consecutive kept sightings of a trail make a sample.
+	 *
+	 * @param trails
+	 * @param keep
+	 *          one per sighting, trail after trail, null keeps everything
+	 * @return NONE if there is nothing to fit
+	 */
+	static SkyRotation fit(final List<PixelTrail> trails, final boolean[] keep) {
+		// x, y, vx, vy per sample, velocities in pixels per second
+		final List<double[]> samples = new ArrayList<>();
+		long firstTs = Long.MAX_VALUE;
+		int offset = 0;
+		for (final PixelTrail trail : trails) {
+			final int first = offset;
+			offset += trail.size();
+			int kept = 0;
+			for (int i = 0; i < trail.size(); i++) {
+				if (keep == null || keep[first + i]) {
+					kept++;
+				}
+			}
+			if (kept < MIN_TRAIL_POINTS) {
+				continue;
+			}
+			int previous = -1;
+			for (int i = 0; i < trail.size(); i++) {
+				if (keep != null && !keep[first + i]) {
+					continue;
+				}
+				if (previous < 0) {
+					firstTs = Math.min(firstTs, trail.getFrame(i).getTs());
+				} else {
+					final Pixel a = trail.getPixel(previous), b = trail.getPixel(i);
+					final double dt = (trail.getFrame(i).getTs() - trail.getFrame(previous).getTs()) / 1_000.0;
+					samples.add(new double[] { (a.cx + b.cx) / 2, (a.cy + b.cy) / 2, (b.cx - a.cx) / dt, (b.cy - a.cy) / dt });
+				}
+				previous = i;
+			}
+		}
+		if (samples.size() < 3) {
+			LOG.warning("Not enough trail samples to fit sky motion");
+			return NONE;
+		}
+
+		double[] fit = solve(samples);
+		for (int round = 0; round < REJECTION_ROUNDS; round++) {
+			final double[] residuals = new double[samples.size()];
+			for (int i = 0; i < residuals.length; i++) {
+				residuals[i] = residual(fit, samples.get(i));
+			}
+			final double[] sorted = residuals.clone();
+			Arrays.sort(sorted);
+			final double limit = Math.max(1e-9, REJECTION_FACTOR * sorted[sorted.length / 2]);
+			final List<double[]> inliers = new ArrayList<>();
+			for (int i = 0; i < residuals.length; i++) {
+				if (residuals[i] <= limit) {
+					inliers.add(samples.get(i));
+				}
+			}
+			if (inliers.size() < 3 || inliers.size() == samples.size()) {
+				break;
+			}
+			samples.retainAll(inliers);
+			fit = solve(samples);
+		}
+
+		final SkyRotation result = new SkyRotation(fit[0], fit[1], fit[2], firstTs);
+		LOG.log(Level.INFO, "Sky motion from {0} samples: {1}", new Object[] { samples.size(), result });
+		return result;
+	}
+
+	private static double residual(final double[] fit, final double[] sample) {
+		final double ex = -fit[0] * sample[1] + fit[1] - sample[2];
+		final double ey = fit[0] * sample[0] + fit[2] - sample[3];
+		return Math.hypot(ex, ey);
+	}
+
+	/**
+	 * Normal equations for unknowns (w, a, b) over vx = -w*y + a and vy = w*x + b
+	 *
+	 * @return {w, a, b}
+	 */
+	private static double[] solve(final List<double[]> samples) {
+		final double[][] m = new double[3][4];
+		for (final double[] s : samples) {
+			// Two rows per sample: [-y, 1, 0 | vx] and [x, 0, 1 | vy]
+			final double[][] rows = { { -s[1], 1, 0, s[2] }, { s[0], 0, 1, s[3] } };
+			for (final double[] row : rows) {
+				for (int i = 0; i < 3; i++) {
+					for (int j = 0; j < 4; j++) {
+						m[i][j] += row[i] * row[j];
+					}
+				}
+			}
+		}
+		// Gaussian elimination with partial pivoting
+		for (int col = 0; col < 3; col++) {
+			int pivot = col;
+			for (int r = col + 1; r < 3; r++) {
+				if (Math.abs(m[r][col]) > Math.abs(m[pivot][col])) {
+					pivot = r;
+				}
+			}
+			final double[] tmp = m[col];
+			m[col] = m[pivot];
+			m[pivot] = tmp;
+			if (Math.abs(m[col][col]) < 1e-30) {
+				return new double[3];
+			}
+			for (int r = 0; r < 3; r++) {
+				if (r != col) {
+					final double f = m[r][col] / m[col][col];
+					for (int c = col; c < 4; c++) {
+						m[r][c] -= f * m[col][c];
+					}
+				}
+			}
+		}
+		return new double[] { m[0][3] / m[0][0], m[1][3] / m[1][1], m[2][3] / m[2][2] };
+	}
+
+	/**
+	 * Radians per second, positive is counter-clockwise in image coordinates (y down)
+	 */
+	private final double omega;
+	/**
+	 * Velocity field offsets in pixels per second
+	 */
+	private final double a, b;
+	private final long referenceTs;
+
+	SkyRotation(final double omega, final double a, final double b, final long referenceTs) {
+		this.omega = omega;
+		this.a = a;
+		this.b = b;
+		this.referenceTs = referenceTs;
+	}
+
+	/**
+	 * Where this position would have been at the reference time
+	 *
+	 * @param loc
+	 * @param ts
+	 * @return
+	 */
+	public Point2D.Double derotate(final Point loc, final long ts) {
+		return derotate(loc.x, loc.y, ts);
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @param ts
+	 * @return
+	 */
+	public Point2D.Double derotate(final double x, final double y, final long ts) {
+		return move(x, y, (referenceTs - ts) / 1_000.0);
+	}
+
+	/**
+	 * Predicted position at ts of something seen at loc at fromTs
+	 *
+	 * @param loc
+	 * @param fromTs
+	 * @param ts
+	 * @return
+	 */
+	public Point2D.Double predict(final Point loc, final long fromTs, final long ts) {
+		return predict(loc.x, loc.y, fromTs, ts);
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @param fromTs
+	 * @param ts
+	 * @return
+	 */
+	public Point2D.Double predict(final double x, final double y, final long fromTs, final long ts) {
+		return move(x, y, (ts - fromTs) / 1_000.0);
+	}
+
+	/**
+	 * Follow the velocity field for dt seconds (negative to go back)
+	 */
+	private Point2D.Double move(final double x, final double y, final double dt) {
+		if (Math.abs(omega) < MIN_OMEGA) {
+			return new Point2D.Double(x + a * dt, y + b * dt);
+		}
+		final double cx = -b / omega, cy = a / omega;
+		final double cos = Math.cos(omega * dt), sin = Math.sin(omega * dt);
+		final double dx = x - cx, dy = y - cy;
+		return new Point2D.Double(cx + cos * dx - sin * dy, cy + sin * dx + cos * dy);
+	}
+
+	/**
+	 * JSON compatible
+	 *
+	 * @return
+	 */
+	@Override
+	public String toString() {
+		if (Math.abs(omega) < MIN_OMEGA) {
+			return "{drift:{x:" + a + ", y:" + b + "}}";
+		}
+		return "{omega:" + omega + ", pole:{x:" + (-b / omega) + ", y:" + (a / omega) + "}}";
+	}
+}
@@ -0,0 +1,183 @@
+package info.benjaminhill.vst;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * Sum, median and average of many frames in bounded memory. The image is processed in bands of rows, and only one band
+ * per frame is held at a time, so the frame count is not limited by the heap.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class Stacker {
+
+	/**
+	 * A quarter of the heap, leaving room for the decoder and the full size outputs
+	 */
+	public static final long DEFAULT_HEAP_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+
+	private static final Logger LOG = Logger.getLogger(Stacker.class.getName());
+
+	/**
+	 * @param frameCount
+	 * @param width
+	 * @param height
+	 * @param heapBudgetBytes
+	 * @return how many rows to load per band so that one band of every frame (one byte per pixel) fits the budget
+	 */
+	static int getBandRows(final int frameCount, final int width, final int height, final long heapBudgetBytes) {
+		final long bytesPerRow = (long) frameCount * width;
+		return (int) Math.max(1, Math.min(height, heapBudgetBytes / bytesPerRow));
+	}
+
+	/**
+	 * What one pass over the frames produces
+	 */
+	public static class Result {
+		/**
+		 * Not clipped, a short would overflow after about 128 bright frames
+		 */
+		public final int[] sum;
+
+		/**
+		 * 50x the mean
+		 */
+		public final short[] average;
+
+		/**
+		 * One plane per requested percentile, in the order requested
+		 */
+		public final short[][] percentiles;
+
+		Result(final int[] sum, final short[] average, final short[][] percentiles) {
+			this.sum = sum;
+			this.average = average;
+			this.percentiles = percentiles;
+		}
+	}
+
+	private final List<File> files = new ArrayList<>();
+	private final int width, height, bandRows;
+
+	/**
+	 * @param files
+	 *          files that don't match the size of the first are skipped
+	 * @param heapBudgetBytes
+	 */
+	public Stacker(final Collection<File> files, final long heapBudgetBytes) {
+		assert !files.isEmpty();
+		final Dimension dim = ImageUtils.getDimension(files.iterator().next());
+		this.width = dim.width;
+		this.height = dim.height;
+		files.forEach(file -> {
+			final Dimension fileDim = ImageUtils.getDimension(file);
+			if (dim.equals(fileDim)) {
+				this.files.add(file);
+			} else {
+				LOG.log(Level.WARNING, "File {0} is {1}x{2} instead of {3}x{4}", new Object[] { file, fileDim.width,
+						fileDim.height, width, height });
+			}
+		});
+		this.bandRows = getBandRows(this.files.size(), width, height, heapBudgetBytes);
+		LOG.log(Level.INFO, "Stacking {0} frames of {1}x{2} in bands of {3} rows", new Object[] { this.files.size(), width,
+				height, bandRows });
+	}
+
+	/**
+	 * Sum, average and the requested percentiles of every pixel, all from the same pass over the frames.
+	 *
+	 * @param percentiles
+	 *          0.0 to 1.0, any order
+	 * @return
+	 */
+	public Result stack(final double... percentiles) {
+		final int numPixels = width * height;
+		final int frameCount = files.size();
+		final int[] sum = new int[numPixels];
+		final short[] average = new short[numPixels];
+		final short[][] result = new short[percentiles.length][];
+		// The histogram walks its bins once, so ranks go in ascending order. plane[k] is where the kth rank goes.
+		final int[] plane = IntStream.range(0, percentiles.length).boxed().sorted(Comparator.comparingDouble(
+				p -> percentiles[p])).mapToInt(Integer::intValue).toArray();
+		final int[] ranks = new int[percentiles.length];
+		for (int k = 0; k < percentiles.length; k++) {
+			result[k] = new short[numPixels];
+			ranks[k] = LumHistogram.getRank(percentiles[plane[k]], frameCount);
+		}
+
+		for (int bandStart = 0; bandStart < height; bandStart += bandRows) {
+			final int y0 = bandStart, rows = Math.min(bandRows, height - bandStart);
+
+			// One band from every frame. Decoding is the slow part, so frames are read in parallel.
+			final BufferedImage[] bandImages = new BufferedImage[frameCount];
+			final byte[][] bands = new byte[frameCount][];
+			IntStream.range(0, frameCount).parallel().forEach(frameId -> {
+				bandImages[frameId] = ImageUtils.getGrayBand(files.get(frameId), y0, rows);
+				bands[frameId] = ((DataBufferByte) bandImages[frameId].getRaster().getDataBuffer()).getData();
+			});
+
+			IntStream.range(0, rows).parallel().forEach(row -> {
+				final LumHistogram histogram = new LumHistogram();
+				final int[] selected = new int[ranks.length];
+				for (int x = 0; x < width; x++) {
+					final int bandIdx = row * width + x;
+					int pixelSum = 0;
+					for (int frameId = 0; frameId < frameCount; frameId++) {
+						final int lum = bands[frameId][bandIdx] & 0xFF;
+						histogram.add(lum);
+						pixelSum += lum;
+					}
+					final int pixelId = (y0 + row) * width + x;
+					sum[pixelId] = pixelSum;
+					average[pixelId] = (short) ((50f * pixelSum) / frameCount);
+					histogram.select(ranks, selected);
+					for (int k = 0; k < ranks.length; k++) {
+						result[plane[k]][pixelId] = (short) selected[k];
+					}
+					histogram.clear();
+				}
+			});
+			for (final BufferedImage bandImage : bandImages) {
+				ImageUtils.recycle(bandImage);
+			}
+			LOG.log(Level.FINE, "Finished rows {0} to {1}", new Object[] { y0, y0 + rows });
+		}
+		return new Result(sum, average, result);
+	}
+
+	/**
+	 * Writes sum, median and average images
+	 */
+	public void write() {
+		final Result planes = stack(0.5);
+		final float[] sum = new float[planes.sum.length];
+		for (int i = 0; i < sum.length; i++) {
+			sum[i] = planes.sum[i];
+		}
+		ImageUtils.writeImage("sum", sum, 1, width, height, false);
+		ImageUtils.writeImageBW("median", planes.percentiles[0], width, height, false);
+		ImageUtils.writeImageBW("average", planes.average, width, height, true);
+	}
+
+	/**
+	 * Writes one image per percentile, named like p25
+	 *
+	 * @param percentiles
+	 *          0.0 to 1.0, any order
+	 */
+	public void writePercentiles(final double... percentiles) {
+		final short[][] planes = stack(percentiles).percentiles;
+		for (int p = 0; p < percentiles.length; p++) {
+			ImageUtils.writeImageBW("p" + Math.round(percentiles[p] * 100), planes[p], width, height, false);
+		}
+	}
+}
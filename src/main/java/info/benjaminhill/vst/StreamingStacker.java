@@ -0,0 +1,380 @@
+package info.benjaminhill.vst;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stacks any number of frames by folding them one at a time into per-pixel accumulators. Memory is the accumulators
+ * plus a few frames being decoded ahead, however many frames there are. Every reducer is fed from the same read, so a
+ * pass over the inputs costs one read of each file in order. Only reducers that need a second look at the frames
+ * (SigmaClip) cause a second pass.
+ * <p>
+ * Reducers see the decoded bytes as they are: one per pixel for LUM, B, G, R per pixel for COLOR. For medians and
+ * percentiles use Stacker, which needs every frame's value of a pixel at once.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class StreamingStacker {
+
+	/**
+	 * Frames decoded ahead of the fold
+	 */
+	private static final int READ_AHEAD = Integer.getInteger("vst.readAhead", 2 * Runtime.getRuntime()
+			.availableProcessors());
+	/**
+	 * Standard deviations from the mean that SigmaClip still keeps
+	 */
+	public static final float DEFAULT_KAPPA = 2.5f;
+
+	private static final Logger LOG = Logger.getLogger(StreamingStacker.class.getName());
+
+	/**
+	 * What each pixel holds
+	 */
+	public enum Channels {
+		LUM(1), COLOR(3);
+
+		final int count;
+
+		Channels(final int count) {
+			this.count = count;
+		}
+	}
+
+	/**
+	 * Folds frames into one output image
+	 */
+	public interface Reducer {
+
+		/**
+		 * @return output file name, without extension
+		 */
+		String getName();
+
+		/**
+		 * @return how many times the frames have to be read
+		 */
+		default int getPasses() {
+			return 1;
+		}
+
+		/**
+		 * @return true if the result is better scaled to its brightest value than clipped at 255
+		 */
+		default boolean isNormalized() {
+			return false;
+		}
+
+		/**
+		 * Before the first frame of each pass
+		 *
+		 * @param pass
+		 * @param length
+		 *          values per frame
+		 */
+		void start(int pass, int length);
+
+		/**
+		 * @param pass
+		 * @param values
+		 *          one frame, unsigned
+		 */
+		void add(int pass, byte[] values);
+
+		/**
+		 * @return one value per input value, after the last pass
+		 */
+		float[] getResult();
+	}
+
+	/**
+	 * Plain sum, exact up to 8 million frames
+	 */
+	public static class Sum implements Reducer {
+
+		protected int[] sum;
+		protected int frames;
+
+		@Override
+		public String getName() {
+			return "stack_sum";
+		}
+
+		@Override
+		public boolean isNormalized() {
+			return true;
+		}
+
+		@Override
+		public void start(final int pass, final int length) {
+			sum = new int[length];
+			frames = 0;
+		}
+
+		@Override
+		public void add(final int pass, final byte[] values) {
+			Kernels.get().addUnsigned(values, sum);
+			frames++;
+		}
+
+		@Override
+		public float[] getResult() {
+			final float[] result = new float[sum.length];
+			for (int i = 0; i < sum.length; i++) {
+				result[i] = sum[i];
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Average, the long exposure look
+	 */
+	public static class Mean extends Sum {
+
+		@Override
+		public String getName() {
+			return "stack_mean";
+		}
+
+		@Override
+		public boolean isNormalized() {
+			return false;
+		}
+
+		@Override
+		public float[] getResult() {
+			final float[] result = super.getResult();
+			for (int i = 0; i < result.length; i++) {
+				result[i] /= Math.max(1, frames);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Lighten, brightest value seen. Star trail composites.
+	 */
+	public static class Max implements Reducer {
+
+		private byte[] max;
+
+		@Override
+		public String getName() {
+			return "stack_max";
+		}
+
+		@Override
+		public void start(final int pass, final int length) {
+			max = new byte[length];
+		}
+
+		@Override
+		public void add(final int pass, final byte[] values) {
+			Kernels.get().maxUnsigned(values, max);
+		}
+
+		@Override
+		public float[] getResult() {
+			final float[] result = new float[max.length];
+			for (int i = 0; i < max.length; i++) {
+				result[i] = max[i] & 0xFF;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Mean without outliers (planes, satellites, hot pixels that flicker). The first pass keeps a running mean and
+	 * variance per value with Welford's update, the second averages only the values within kappa standard deviations of
+	 * that mean.
+	 */
+	public static class SigmaClip implements Reducer {
+
+		private final float kappa;
+		private float[] mean, m2;
+		private int[] sum, kept;
+		private int frames;
+
+		/**
+		 * @param kappa
+		 *          standard deviations to keep
+		 */
+		public SigmaClip(final float kappa) {
+			this.kappa = kappa;
+		}
+
+		@Override
+		public String getName() {
+			return "stack_sigma";
+		}
+
+		@Override
+		public int getPasses() {
+			return 2;
+		}
+
+		@Override
+		public void start(final int pass, final int length) {
+			if (pass == 0) {
+				mean = new float[length];
+				m2 = new float[length];
+				frames = 0;
+				return;
+			}
+			// m2 becomes the allowed distance from the mean
+			for (int i = 0; i < m2.length; i++) {
+				m2[i] = kappa * (float) Math.sqrt(m2[i] / Math.max(1, frames));
+			}
+			sum = new int[length];
+			kept = new int[length];
+		}
+
+		@Override
+		public void add(final int pass, final byte[] values) {
+			if (pass == 0) {
+				frames++;
+				for (int i = 0; i < values.length; i++) {
+					final int value = values[i] & 0xFF;
+					final float delta = value - mean[i];
+					mean[i] += delta / frames;
+					m2[i] += delta * (value - mean[i]);
+				}
+				return;
+			}
+			for (int i = 0; i < values.length; i++) {
+				final int value = values[i] & 0xFF;
+				if (Math.abs(value - mean[i]) <= m2[i]) {
+					sum[i] += value;
+					kept[i]++;
+				}
+			}
+		}
+
+		@Override
+		public float[] getResult() {
+			final float[] result = new float[mean.length];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = kept[i] > 0 ? (float) sum[i] / kept[i] : mean[i];
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Stacks frames/ in colour with every reducer
+	 *
+	 * @param args
+	 */
+	public static void main(final String... args) {
+		System.setProperty("java.util.logging.SimpleFormatter.format", "%4$s: %5$s%n");
+		new StreamingStacker(ImageUtils.getImageFiles(Paths.get("frames")), Channels.COLOR).write(new Sum(), new Mean(),
+				new Max(), new SigmaClip(DEFAULT_KAPPA));
+		Metrics.writeReport();
+	}
+
+	private final List<File> files = new ArrayList<>();
+	private final Channels channels;
+	private final int width, height;
+
+	/**
+	 * @param files
+	 *          files that don't match the size of the first are skipped
+	 * @param channels
+	 */
+	public StreamingStacker(final Collection<File> files, final Channels channels) {
+		assert !files.isEmpty();
+		this.channels = channels;
+		final Dimension dim = ImageUtils.getDimension(files.iterator().next());
+		this.width = dim.width;
+		this.height = dim.height;
+		files.forEach(file -> {
+			final Dimension fileDim = ImageUtils.getDimension(file);
+			if (dim.equals(fileDim)) {
+				this.files.add(file);
+			} else {
+				LOG.log(Level.WARNING, "File {0} is {1}x{2} instead of {3}x{4}", new Object[] { file, fileDim.width,
+						fileDim.height, width, height });
+			}
+		});
+	}
+
+	private BufferedImage read(final File file) {
+		return channels == Channels.LUM ? ImageUtils.getGray(file) : ImageUtils.getBgr(file);
+	}
+
+	/**
+	 * Feeds every frame to every reducer, as many passes as the reducers need
+	 *
+	 * @param reducers
+	 */
+	public void stack(final Reducer... reducers) {
+		int passes = 0;
+		for (final Reducer reducer : reducers) {
+			passes = Math.max(passes, reducer.getPasses());
+		}
+		final int length = width * height * channels.count;
+		final ExecutorService decoders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			for (int pass = 0; pass < passes; pass++) {
+				for (final Reducer reducer : reducers) {
+					if (pass < reducer.getPasses()) {
+						reducer.start(pass, length);
+					}
+				}
+				// Decoding runs ahead, folding stays in file order
+				final Deque<Future<BufferedImage>> ahead = new ArrayDeque<>();
+				int next = 0;
+				while (next < files.size() || !ahead.isEmpty()) {
+					while (next < files.size() && ahead.size() < READ_AHEAD) {
+						final File file = files.get(next++);
+						ahead.add(decoders.submit(() -> read(file)));
+					}
+					final BufferedImage image = ahead.poll().get();
+					final long start = System.nanoTime();
+					final byte[] values = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+					for (final Reducer reducer : reducers) {
+						if (pass < reducer.getPasses()) {
+							reducer.add(pass, values);
+						}
+					}
+					ImageUtils.recycle(image);
+					Metrics.time(Metrics.Stage.STACK, start);
+				}
+				LOG.log(Level.INFO, "Stacked pass {0} of {1} over {2} frames", new Object[] { pass + 1, passes, files
+						.size() });
+			}
+		} catch (final InterruptedException | ExecutionException ex) {
+			throw new RuntimeException(ex);
+		} finally {
+			decoders.shutdownNow();
+		}
+	}
+
+	/**
+	 * Stacks and writes each reducer's result as a png named after it
+	 *
+	 * @param reducers
+	 */
+	public void write(final Reducer... reducers) {
+		stack(reducers);
+		for (final Reducer reducer : reducers) {
+			ImageUtils.writeImage(reducer.getName(), reducer.getResult(), channels.count, width, height, reducer
+					.isNormalized());
+		}
+	}
+}
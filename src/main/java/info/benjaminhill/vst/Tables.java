@@ -0,0 +1,42 @@
+package info.benjaminhill.vst;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import info.benjaminhill.util.DBLite;
+
+/**
+ * Brings tables from older runs up to date, so a rerun can resume from the DB instead of starting over
+ *
+ * @author benjaminhill@gmail.com
+ */
+class Tables {
+
+	private static final Logger LOG = Logger.getLogger(Tables.class.getName());
+
+	/**
+	 * Adds whichever columns the table doesn't have yet. Existing rows get null.
+	 *
+	 * @param table
+	 * @param definitions
+	 *          like "cx real"
+	 */
+	static void addMissingColumns(final String table, final String... definitions) {
+		final Set<String> existing = new HashSet<>();
+		DBLite.DB.selectTable("PRAGMA table_info(`" + table + "`)").rowMap().values().forEach(row -> existing.add(String
+				.valueOf(row.get("name")).toLowerCase()));
+		for (final String definition : definitions) {
+			final String column = definition.trim().split("\\s+")[0];
+			if (!existing.contains(column.toLowerCase())) {
+				DBLite.DB.update("ALTER TABLE `" + table + "` ADD COLUMN " + definition);
+				LOG.log(Level.INFO, "Added column `{0}` to `{1}`", new Object[] { column, table });
+			}
+		}
+	}
+
+	private Tables() {
+		// empty
+	}
+}
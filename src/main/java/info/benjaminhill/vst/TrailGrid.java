@@ -0,0 +1,172 @@
+package info.benjaminhill.vst;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Active trails bucketed by the location of their last pixel. A candidate pixel only has to be offered to trails in its
+ * own and the 8 neighbouring cells, and trails expire off a queue ordered by their last timestamp instead of a scan of
+ * every trail per frame. With a SkyRotation, cells are in derotated coordinates so they follow the stars. Not thread
+ * safe, linking is sequential.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class TrailGrid {
+
+	/**
+	 * No trail can reach further than one cell
+	 */
+	static final int CELL_SIZE = (int) Math.ceil(Math.sqrt(PixelTrail.MAX_DISTANCE_SQ));
+
+	private static class Expiry implements Comparable<Expiry> {
+
+		final long lastTs;
+		final PixelTrail trail;
+
+		Expiry(final PixelTrail trail) {
+			this.lastTs = trail.getLastFrame().getTs();
+			this.trail = trail;
+		}
+
+		@Override
+		public int compareTo(final Expiry other) {
+			return Long.compare(lastTs, other.lastTs);
+		}
+	}
+
+	/**
+	 * Multiplied rather than packed side by side, which left Long.hashCode() only cellX ^ cellY and most cells colliding
+	 */
+	static long getCell(final long cellX, final long cellY) {
+		return cellX * 0x9E3779B97F4A7C15L + cellY;
+	}
+
+	private final SkyRotation motion;
+	private final Map<Long, List<PixelTrail>> cells = new HashMap<>();
+	private final PriorityQueue<Expiry> expiries = new PriorityQueue<>();
+	private final List<PixelTrail> candidates = new ArrayList<>();
+	private int size = 0;
+
+	/**
+	 * Plain linking, trails don't move
+	 */
+	public TrailGrid() {
+		this(SkyRotation.NONE);
+	}
+
+	/**
+	 * Linking in derotated coordinates, see SkyRotation
+	 *
+	 * @param motion
+	 */
+	public TrailGrid(final SkyRotation motion) {
+		this.motion = motion;
+	}
+
+	private long getCell(final int x, final int y, final long ts) {
+		final Point2D.Double derotated = motion.derotate(x, y, ts);
+		return getCell((long) Math.floor(derotated.x / CELL_SIZE), (long) Math.floor(derotated.y / CELL_SIZE));
+	}
+
+	private long getCell(final PixelTrail trail) {
+		return getCell(trail.getLastX(), trail.getLastY(), trail.getLastFrame().getTs());
+	}
+
+	private void add(final PixelTrail trail) {
+		cells.computeIfAbsent(getCell(trail), cell -> new ArrayList<>(2)).add(trail);
+		expiries.add(new Expiry(trail));
+		size++;
+	}
+
+	/**
+	 * Empties the grid
+	 *
+	 * @return every active trail
+	 */
+	public List<PixelTrail> drain() {
+		final List<PixelTrail> result = new ArrayList<>(size);
+		cells.values().forEach(result::addAll);
+		cells.clear();
+		expiries.clear();
+		size = 0;
+		return result;
+	}
+
+	/**
+	 * Removes trails that can no longer be extended at ts
+	 *
+	 * @param ts
+	 * @param finished
+	 *          gets the expired trails
+	 */
+	public void expire(final long ts, final Collection<PixelTrail> finished) {
+		while (!expiries.isEmpty() && expiries.peek().lastTs <= ts - PixelTrail.MAX_TS_GAP) {
+			final Expiry expiry = expiries.poll();
+			// Trails that grew since this entry was queued have a newer entry
+			if (expiry.trail.getLastFrame().getTs() != expiry.lastTs) {
+				continue;
+			}
+			remove(expiry.trail, getCell(expiry.trail));
+			finished.add(expiry.trail);
+		}
+	}
+
+	/**
+	 * Adds the detection to the best nearby trail that accepts it, same preference order as PixelTrail's natural order,
+	 * or starts a new trail.
+	 *
+	 * @param frame
+	 * @param index
+	 *          into frame.getDetections()
+	 */
+	public void offer(final Frame frame, final int index) {
+		candidates.clear();
+		final Detections detections = frame.getDetections();
+		final Point2D.Double derotated = motion.derotate(detections.getX(index), detections.getY(index), frame.getTs());
+		final long cx = (long) Math.floor(derotated.x / CELL_SIZE), cy = (long) Math.floor(derotated.y / CELL_SIZE);
+		for (long dy = -1; dy <= 1; dy++) {
+			for (long dx = -1; dx <= 1; dx++) {
+				final List<PixelTrail> cell = cells.get(getCell(cx + dx, cy + dy));
+				if (cell != null) {
+					candidates.addAll(cell);
+				}
+			}
+		}
+		Collections.sort(candidates);
+		for (final PixelTrail trail : candidates) {
+			final long oldCell = getCell(trail);
+			final boolean accepted = motion == SkyRotation.NONE ? trail.offerPixel(frame, index) : trail.offerPixel(frame,
+					index, motion);
+			if (accepted) {
+				remove(trail, oldCell);
+				add(trail);
+				return;
+			}
+		}
+		final PixelTrail newTrail = new PixelTrail();
+		newTrail.offerPixel(frame, index);
+		add(newTrail);
+	}
+
+	private void remove(final PixelTrail trail, final long cell) {
+		final List<PixelTrail> trails = cells.get(cell);
+		trails.remove(trail);
+		if (trails.isEmpty()) {
+			cells.remove(cell);
+		}
+		size--;
+	}
+
+	/**
+	 * @return active trail count
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,327 @@
+package info.benjaminhill.vst;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Matches two frames by the shapes of their bright star triangles, no matter how much time is between them. Trails end
+ * at MAX_TS_GAP, so without this a cloud or a battery swap splits the night into unrelated sets of trails.
+ * <p>
+ * Each frame's brightest stars form triangles with their nearest neighbours. A triangle is keyed on its side ratios,
+ * longest side and handedness, which a rotation and translation don't change. Triangles of the earlier frame go in a
+ * hash table; each triangle of the later frame looks up its key (and the neighbouring bins), and every hit proposes a
+ * rigid transform that is scored by how many bright stars it lines up.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class TriangleMatcher {
+
+	/**
+	 * Stars per frame that triangles are built from
+	 */
+	private static final int BRIGHTEST = 30;
+	/**
+	 * Each star makes triangles with pairs of this many nearest neighbours
+	 */
+	private static final int NEIGHBOURS = 5;
+	/**
+	 * Triangles smaller than this don't pin down a rotation
+	 */
+	private static final double MIN_SIDE = 10;
+	/**
+	 * Hash bin widths for the side ratios and the longest side (pixels)
+	 */
+	private static final double RATIO_BIN = 0.01;
+	private static final double SIDE_BIN = 2;
+	/**
+	 * A star lines up with another if the transform lands it this close, in pixels
+	 */
+	private static final double MATCH_TOLERANCE = 3;
+	/**
+	 * A frame match needs at least this many lined up stars
+	 */
+	private static final int MIN_MATCHED_STARS = 6;
+
+	private static final Logger LOG = Logger.getLogger(TriangleMatcher.class.getName());
+
+	/**
+	 * Vertices ordered opposite the shortest, middle and longest side
+	 */
+	private static class Triangle {
+
+		final int v0, v1, v2;
+		final long key;
+
+		Triangle(final int v0, final int v1, final int v2, final long key) {
+			this.v0 = v0;
+			this.v1 = v1;
+			this.v2 = v2;
+			this.key = key;
+		}
+	}
+
+	private static long getKey(final long ratio1, final long ratio2, final long side, final boolean clockwise) {
+		return (((((ratio1 << 8) | ratio2) << 24) | side) << 1) | (clockwise ? 1 : 0);
+	}
+
+	private static List<Point2D.Double> getStars(final Collection<Pixel> detections) {
+		return detections.stream().sorted(Comparator.<Pixel>comparingInt(p -> p.flux).thenComparingInt(p -> p.lum)
+				.reversed()).limit(BRIGHTEST).map(p -> new Point2D.Double(p.cx, p.cy)).collect(Collectors.toList());
+	}
+
+	/**
+	 * Triangles of each star with pairs of its nearest neighbours, deduplicated
+	 */
+	private static List<Triangle> getTriangles(final List<Point2D.Double> stars) {
+		final List<Triangle> result = new ArrayList<>();
+		final Set<Long> seen = new HashSet<>();
+		for (int i = 0; i < stars.size(); i++) {
+			final Point2D.Double star = stars.get(i);
+			final List<Integer> nearest = new ArrayList<>();
+			for (int j = 0; j < stars.size(); j++) {
+				if (j != i) {
+					nearest.add(j);
+				}
+			}
+			nearest.sort(Comparator.comparingDouble(j -> star.distanceSq(stars.get(j))));
+			final List<Integer> near = nearest.subList(0, Math.min(NEIGHBOURS, nearest.size()));
+			for (int a = 0; a < near.size(); a++) {
+				for (int b = a + 1; b < near.size(); b++) {
+					final int[] v = { i, near.get(a), near.get(b) };
+					Arrays.sort(v);
+					if (!seen.add(((long) v[0] << 42) | ((long) v[1] << 21) | v[2])) {
+						continue;
+					}
+					final Triangle triangle = getTriangle(stars, v[0], v[1], v[2]);
+					if (triangle != null) {
+						result.add(triangle);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private static Triangle getTriangle(final List<Point2D.Double> stars, final int i, final int j, final int k) {
+		final int[] v = { i, j, k };
+		// Side opposite each vertex
+		final double[] side = { stars.get(j).distance(stars.get(k)), stars.get(i).distance(stars.get(k)), stars.get(i)
+				.distance(stars.get(j)) };
+		// Order vertices by their opposite side, shortest first
+		for (int a = 0; a < 2; a++) {
+			for (int b = 0; b < 2 - a; b++) {
+				if (side[b] > side[b + 1]) {
+					final double s = side[b];
+					side[b] = side[b + 1];
+					side[b + 1] = s;
+					final int t = v[b];
+					v[b] = v[b + 1];
+					v[b + 1] = t;
+				}
+			}
+		}
+		if (side[0] < MIN_SIDE) {
+			return null;
+		}
+		final Point2D.Double p0 = stars.get(v[0]), p1 = stars.get(v[1]), p2 = stars.get(v[2]);
+		final boolean clockwise = ((p1.x - p0.x) * (p2.y - p0.y)) - ((p1.y - p0.y) * (p2.x - p0.x)) > 0;
+		return new Triangle(v[0], v[1], v[2], getKey(Math.round(side[0] / side[2] / RATIO_BIN), Math.round(side[1]
+				/ side[2] / RATIO_BIN), Math.round(side[2] / SIDE_BIN), clockwise));
+	}
+
+	/**
+	 * Rigid transform taking the later frame's pixels onto the earlier frame's, or null if they don't match
+	 *
+	 * @param earlier
+	 *          detections in the earlier frame
+	 * @param later
+	 *          detections in the later frame
+	 * @return
+	 */
+	public static Aligner.Transform match(final Collection<Pixel> earlier, final Collection<Pixel> later) {
+		final List<Point2D.Double> starsA = getStars(earlier), starsB = getStars(later);
+		final Map<Long, List<Triangle>> index = new HashMap<>();
+		for (final Triangle triangle : getTriangles(starsA)) {
+			index.computeIfAbsent(triangle.key, key -> new ArrayList<>()).add(triangle);
+		}
+
+		List<int[]> bestPairs = null;
+		for (final Triangle tb : getTriangles(starsB)) {
+			final long ratio1 = tb.key >>> 33, ratio2 = (tb.key >>> 25) & 0xFF, side = (tb.key >>> 1) & 0xFFFFFF;
+			final boolean clockwise = (tb.key & 1) == 1;
+			for (long d1 = -1; d1 <= 1; d1++) {
+				for (long d2 = -1; d2 <= 1; d2++) {
+					for (long ds = -1; ds <= 1; ds++) {
+						if (ratio1 + d1 < 0 || ratio2 + d2 < 0) {
+							continue;
+						}
+						for (final Triangle ta : index.getOrDefault(getKey(ratio1 + d1, ratio2 + d2, side + ds, clockwise),
+								Collections.emptyList())) {
+							final List<int[]> seed = new ArrayList<>();
+							seed.add(new int[] { ta.v0, tb.v0 });
+							seed.add(new int[] { ta.v1, tb.v1 });
+							seed.add(new int[] { ta.v2, tb.v2 });
+							final Aligner.Transform guess = fit(starsA, starsB, seed);
+							final List<int[]> pairs = getPairs(starsA, starsB, guess);
+							if (bestPairs == null || pairs.size() > bestPairs.size()) {
+								bestPairs = pairs;
+							}
+						}
+					}
+				}
+			}
+		}
+		if (bestPairs == null || bestPairs.size() < MIN_MATCHED_STARS) {
+			return null;
+		}
+		// Refine on everything that lined up
+		return fit(starsA, starsB, bestPairs);
+	}
+
+	/**
+	 * Each later star paired with the nearest earlier star within MATCH_TOLERANCE of where the transform puts it
+	 */
+	private static List<int[]> getPairs(final List<Point2D.Double> starsA, final List<Point2D.Double> starsB,
+			final Aligner.Transform transform) {
+		final List<int[]> pairs = new ArrayList<>();
+		final boolean[] used = new boolean[starsA.size()];
+		for (int b = 0; b < starsB.size(); b++) {
+			final Point2D.Double moved = transform.apply(starsB.get(b).x, starsB.get(b).y);
+			int nearest = -1;
+			double nearestSq = MATCH_TOLERANCE * MATCH_TOLERANCE;
+			for (int a = 0; a < starsA.size(); a++) {
+				final double distSq = moved.distanceSq(starsA.get(a));
+				if (!used[a] && distSq <= nearestSq) {
+					nearest = a;
+					nearestSq = distSq;
+				}
+			}
+			if (nearest >= 0) {
+				used[nearest] = true;
+				pairs.add(new int[] { nearest, b });
+			}
+		}
+		return pairs;
+	}
+
+	/**
+	 * Least squares rotation and translation (2D Procrustes) taking B points onto their A partners
+	 */
+	private static Aligner.Transform fit(final List<Point2D.Double> starsA, final List<Point2D.Double> starsB,
+			final List<int[]> pairs) {
+		double ax = 0, ay = 0, bx = 0, by = 0;
+		for (final int[] pair : pairs) {
+			ax += starsA.get(pair[0]).x;
+			ay += starsA.get(pair[0]).y;
+			bx += starsB.get(pair[1]).x;
+			by += starsB.get(pair[1]).y;
+		}
+		final int n = pairs.size();
+		ax /= n;
+		ay /= n;
+		bx /= n;
+		by /= n;
+		double dot = 0, cross = 0;
+		for (final int[] pair : pairs) {
+			final double px = starsB.get(pair[1]).x - bx, py = starsB.get(pair[1]).y - by;
+			final double sx = starsA.get(pair[0]).x - ax, sy = starsA.get(pair[0]).y - ay;
+			dot += px * sx + py * sy;
+			cross += px * sy - py * sx;
+		}
+		final double theta = Math.atan2(cross, dot);
+		final double cos = Math.cos(theta), sin = Math.sin(theta);
+		final double tx = ax - (cos * bx - sin * by), ty = ay - (sin * bx + cos * by);
+		double sumSq = 0;
+		for (final int[] pair : pairs) {
+			final Point2D.Double b = starsB.get(pair[1]);
+			sumSq += starsA.get(pair[0]).distanceSq(cos * b.x - sin * b.y + tx, sin * b.x + cos * b.y + ty);
+		}
+		return new Aligner.Transform(theta, tx, ty, n, Math.sqrt(sumSq / n));
+	}
+
+	/**
+	 * Joins trails that a time gap cut in two. At each gap longer than MAX_TS_GAP the frames either side are matched,
+	 * and a trail ending in the frame before the gap is joined to the trail starting in the frame after it whose first
+	 * pixel the match puts within MATCH_TOLERANCE.
+	 *
+	 * @param frames
+	 *          every frame with its detections
+	 * @param trails
+	 *          from linking, trails that get joined on are removed
+	 * @return the trails with gaps bridged
+	 */
+	public static List<PixelTrail> bridge(final SortedSet<Frame> frames, final List<PixelTrail> trails) {
+		final List<PixelTrail> result = new ArrayList<>(trails);
+		Frame prev = null;
+		int gaps = 0, bridged = 0, joined = 0;
+		for (final Frame frame : frames) {
+			if (prev != null && frame.getTs() - prev.getTs() > PixelTrail.MAX_TS_GAP) {
+				gaps++;
+				final Aligner.Transform transform = match(prev.getPixels(), frame.getPixels());
+				if (transform == null) {
+					LOG.log(Level.WARNING, "No star match across the gap from {0} to {1}", new Object[] { prev.getPath(), frame
+							.getPath() });
+				} else {
+					bridged++;
+					joined += join(result, prev, frame, transform);
+				}
+			}
+			prev = frame;
+		}
+		LOG.log(Level.INFO, "Bridged {0} of {1} gaps, joined {2} trails", new Object[] { bridged, gaps, joined });
+		return result;
+	}
+
+	private static int join(final List<PixelTrail> trails, final Frame before, final Frame after,
+			final Aligner.Transform transform) {
+		final List<PixelTrail> ending = new ArrayList<>();
+		final List<PixelTrail> starting = new ArrayList<>();
+		for (final PixelTrail trail : trails) {
+			if (trail.getLastFrame().equals(before)) {
+				ending.add(trail);
+			} else if (trail.getFirstFrame().equals(after)) {
+				starting.add(trail);
+			}
+		}
+		final Set<PixelTrail> used = new HashSet<>();
+		final Set<PixelTrail> absorbed = new HashSet<>();
+		for (final PixelTrail later : starting) {
+			final Pixel first = later.getFirstPixel();
+			final Point2D.Double moved = transform.apply(first.cx, first.cy);
+			PixelTrail nearest = null;
+			double nearestSq = MATCH_TOLERANCE * MATCH_TOLERANCE;
+			for (final PixelTrail earlier : ending) {
+				final Pixel last = earlier.getLastPixel();
+				final double distSq = moved.distanceSq(last.cx, last.cy);
+				if (!used.contains(earlier) && distSq <= nearestSq) {
+					nearest = earlier;
+					nearestSq = distSq;
+				}
+			}
+			if (nearest != null) {
+				used.add(nearest);
+				nearest.append(later);
+				absorbed.add(later);
+			}
+		}
+		trails.removeAll(absorbed);
+		return absorbed.size();
+	}
+
+	private TriangleMatcher() {
+		// empty
+	}
+}
@@ -3,13 +3,10 @@ package info.benjaminhill.vst;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.SortedSet;
-import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
-import info.benjaminhill.util.DBLite;
-
 /**
  * @author benhill
  */
@@ -17,67 +14,83 @@ public class VirtualStarTracker {
 
 	private static final Logger LOG = Logger.getLogger(VirtualStarTracker.class.getName());
 	private static final int COMBINE_EXPOSURE_MS = 1_000 * 15;
+	/**
+	 * BLOBS gives one centroid per star, BUCKETS the older per-bucket maxima
+	 */
+	private static final Brightest.Mode DETECTION_MODE = Brightest.Mode.BUCKETS;
+	/**
+	 * Fit the sky's rotation from a first linking pass, then relink following it. Survives dropped frames and wider
+	 * COMBINE_EXPOSURE_MS.
+	 */
+	private static final boolean PREDICT_MOTION = false;
+	/**
+	 * Join trails cut by gaps longer than PixelTrail.MAX_TS_GAP (clouds, battery swaps) by matching star patterns
+	 */
+	private static final boolean BRIDGE_GAPS = true;
+	/**
+	 * RIGID fits every frame on its own (tripod bumped, wind), POLE one rotation for a perfectly still camera
+	 */
+	private static final Aligner.Model ALIGN_MODEL = Aligner.Model.RIGID;
+	private static final FramePipeline.Config PIPELINE = new FramePipeline.Config();
 
 	/**
 	 * @param args
 	 */
 	public static void main(final String... args) {
 		System.setProperty("java.util.logging.SimpleFormatter.format", "%4$s: %5$s%n");
+		PIPELINE.mode = DETECTION_MODE;
+		Metrics.register();
 		Frame.schema();
 		Pixel.schema();
+		Fingerprint.schema();
+		Catalog.schema();
 
-		if (DBLite.DB.selectLong("SELECT count(1) FROM `frame`") < 3) {
-			LOG.info("Not enough frames, reloading.");
-
-			ImageUtils.getImageFiles(Paths.get("frames")).parallelStream().forEach(file -> new Frame(file).save());
-			LOG.info("Saved all frames");
-		}
-
-		if (DBLite.DB.selectLong("SELECT count(1) FROM `pixel`") < 10) {
-			LOG.info("Not enough pixels, reloading brights.");
-			Frame.loadTimeGrouped(COMBINE_EXPOSURE_MS).parallelStream().forEach(frame -> {
-				frame.findBrights();
-				LOG.log(Level.INFO, "{0}\t{1}", new Object[] { frame.getPixels().size(), frame.getAddedPath() });
-			});
-			LOG.info("Finished finding pixels.");
+		// Only new or changed files are read again, frames/ may have a folder per night
+		final Catalog catalog = Catalog.scan(Paths.get("frames"), PIPELINE.ioThreads);
+		try (final BatchWriter writer = new BatchWriter()) {
+			FramePipeline.ingest(Fingerprint.getChanged(catalog.getFiles(), writer), catalog, PIPELINE, writer);
 		}
 
+		// Only frame groups with changed files or detection settings are detected again
 		final SortedSet<Frame> frames = Frame.loadTimeGrouped(COMBINE_EXPOSURE_MS);
+		final String params = Brightest.getParams(DETECTION_MODE) + " " + Calibration.getParams();
+		final long startMs = System.currentTimeMillis();
+		final List<Frame> toScan;
+		try (final BatchWriter writer = new BatchWriter()) {
+			toScan = Fingerprint.getStale(frames, params, writer);
+			if (!toScan.isEmpty()) {
+				FramePipeline.findBrights(toScan, PIPELINE, writer);
+				Fingerprint.saveDetected(toScan, params, writer);
+			}
+		}
+		if (!toScan.isEmpty()) {
+			final long elapsedMs = Math.max(1, System.currentTimeMillis() - startMs);
+			LOG.log(Level.INFO, "Finished finding pixels in {0} frames, {1} frames/sec.", new Object[] { toScan.size(),
+					(1_000.0 * toScan.size()) / elapsedMs });
+		}
 
 		LOG.log(Level.INFO, "DB has frame groups:{0}", frames.size());
 
-		final SortedSet<PixelTrail> activeTrails = new ConcurrentSkipListSet<>();
-		final ConcurrentSkipListSet<PixelTrail> finishedTrails = new ConcurrentSkipListSet<>();
-
-		frames.forEach(frame -> {
-
-			finishedTrails.addAll(activeTrails.stream().filter(pt -> {
-				return !pt.isWithinTimeWindow(frame.getTs());
-			}).collect(Collectors.toList()));
-
-			activeTrails.removeAll(finishedTrails);
-
-			frame.getPixels().stream().forEach(pixel -> {
-				// First check to see if it can be added to an existing trail
-				for (final PixelTrail trail : activeTrails) {
-					if (trail.offerPixel(frame, pixel)) {
-						return;
-					}
-				}
-				PixelTrail newTrail = new PixelTrail();
-				newTrail.offerPixel(frame, pixel);
-				activeTrails.add(newTrail);
-			});
-		});
-		finishedTrails.addAll(activeTrails);
-		activeTrails.clear();
+		List<PixelTrail> finishedTrails = ParallelLinker.link(frames);
+		if (PREDICT_MOTION) {
+			LOG.log(Level.INFO, "Trails before motion model: {0}", finishedTrails.size());
+			finishedTrails = ParallelLinker.link(frames, SkyRotation.fit(finishedTrails));
+		}
+		if (BRIDGE_GAPS) {
+			finishedTrails = TriangleMatcher.bridge(frames, finishedTrails);
+		}
 		LOG.log(Level.INFO, "Trails: {0}", finishedTrails.size());
+		Metrics.add(Metrics.Count.TRAILS, finishedTrails.size());
 
 		final List<PixelTrail> longTrails = finishedTrails.stream().filter(t -> t.getDuration() > 1_000 * 60 * 10 && t
 				.getPixelDistanceSq() > 10).collect(Collectors.toList());
 
 		LOG.log(Level.INFO, "Long Trails: {0}", longTrails.size());
 
+		Aligner.write(Aligner.align(longTrails, ALIGN_MODEL), Paths.get("transforms.tsv"));
+		PtoWriter.write(longTrails, Paths.get("."));
+		Metrics.writeReport();
+
 	}
 
 }
@@ -0,0 +1,241 @@
+package info.benjaminhill.vst;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Long-running capture-night mode. Watches the frames directory, and as each image finishes writing: saves the frame,
+ * detects and saves its pixels, extends the active trails and folds it into a running sum/max stack. The cost per new
+ * frame doesn't grow with the session.
+ *
+ * @author benjaminhill@gmail.com
+ */
+public class WatchIngest {
+
+	private static final Logger LOG = Logger.getLogger(WatchIngest.class.getName());
+
+	/**
+	 * A file is finished when its size holds still this long
+	 */
+	private static final long SETTLE_MS = 1_000;
+	/**
+	 * Write the running stack every this many frames
+	 */
+	private static final int STACK_EVERY_FRAMES = 10;
+	private static final Brightest.Mode DETECTION_MODE = Brightest.Mode.BUCKETS;
+
+	/**
+	 * @param args
+	 */
+	public static void main(final String... args) throws IOException, InterruptedException {
+		System.setProperty("java.util.logging.SimpleFormatter.format", "%4$s: %5$s%n");
+		Frame.schema();
+		Pixel.schema();
+		Fingerprint.schema();
+		Catalog.schema();
+		Metrics.register();
+		final WatchIngest ingest = new WatchIngest(Paths.get("frames"));
+		Runtime.getRuntime().addShutdownHook(new Thread(ingest::close));
+		ingest.run();
+	}
+
+	private final Path dir;
+	private final BatchWriter writer = new BatchWriter();
+	private final TrailGrid activeTrails = new TrailGrid();
+	private final List<PixelTrail> finishedTrails = new ArrayList<>();
+	private final Set<Path> done = new HashSet<>();
+	/**
+	 * Files still being written, and their size when last checked
+	 */
+	private final Map<Path, Long> pending = new HashMap<>();
+	private long lastTs = Long.MIN_VALUE;
+	private int frameCount = 0, width = -1, height = -1;
+	private final StreamingStacker.Sum sum = new StreamingStacker.Sum();
+	private final StreamingStacker.Max max = new StreamingStacker.Max();
+	private volatile WatchService watcher = null;
+	/**
+	 * Unique timestamps, same as a batch run
+	 */
+	private Catalog catalog = null;
+	/**
+	 * Recorded with each detection, same as a batch run, so the batch run doesn't detect these frames again
+	 */
+	private String params = null;
+
+	/**
+	 * @param dir
+	 */
+	public WatchIngest(final Path dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Flushes the DB writer and the stack
+	 */
+	public synchronized void close() {
+		try {
+			if (watcher != null) {
+				watcher.close();
+			}
+		} catch (final IOException ex) {
+			LOG.log(Level.WARNING, null, ex);
+		}
+		writer.close();
+		writeStack();
+		LOG.log(Level.INFO, "Frames:{0} trails finished:{1} active:{2}", new Object[] { frameCount, finishedTrails.size(),
+				activeTrails.size() });
+		Metrics.add(Metrics.Count.TRAILS, finishedTrails.size() + activeTrails.size());
+		Metrics.writeReport();
+	}
+
+	/**
+	 * Whole and no longer growing. JPEGs must also end with the EOI marker.
+	 */
+	private boolean isComplete(final Path path, final long size) {
+		if (size <= 0 || pending.get(path) == null || pending.get(path) != size) {
+			return false;
+		}
+		if (!path.toString().toLowerCase().endsWith(".jpg")) {
+			return true;
+		}
+		try (final RandomAccessFile raf = new RandomAccessFile(path.toFile(), "r")) {
+			raf.seek(size - 2);
+			return raf.read() == 0xFF && raf.read() == 0xD9;
+		} catch (final IOException ex) {
+			return false;
+		}
+	}
+
+	private synchronized void ingest(final File file) {
+		final Frame frame = catalog.add(file, writer);
+		if (frame == null) {
+			return;
+		}
+		frame.save(writer);
+		final Fingerprint fingerprint = Fingerprint.of(file);
+		fingerprint.save(writer);
+
+		final BufferedImage gray = ImageUtils.getGray(file);
+		if (width < 0) {
+			width = gray.getWidth();
+			height = gray.getHeight();
+			sum.start(0, width * height);
+			max.start(0, width * height);
+		}
+		if (gray.getWidth() != width || gray.getHeight() != height) {
+			LOG.log(Level.WARNING, "Skipping {0}, wrong size", file);
+			ImageUtils.recycle(gray);
+			return;
+		}
+		Calibration.forFrame(frame).apply(gray, 1);
+		frame.addPixels(Brightest.getBrightest(gray, DETECTION_MODE), writer);
+		fingerprint.saveDetected(frame, params, writer);
+		final byte[] lum = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
+		sum.add(0, lum);
+		max.add(0, lum);
+		ImageUtils.recycle(gray);
+
+		// Trails only grow forward in time
+		if (frame.getTs() > lastTs) {
+			final long linkStart = System.nanoTime();
+			activeTrails.expire(frame.getTs(), finishedTrails);
+			for (int i = 0; i < frame.getDetections().size(); i++) {
+				activeTrails.offer(frame, i);
+			}
+			Metrics.time(Metrics.Stage.LINK, linkStart);
+			lastTs = frame.getTs();
+		} else {
+			LOG.log(Level.WARNING, "{0} arrived out of order, not linked", file);
+		}
+
+		frameCount++;
+		Metrics.add(Metrics.Count.FRAMES, 1);
+		LOG.log(Level.INFO, "{0}\t{1} pixels\t{2} active trails", new Object[] { file.getName(), frame.getDetections().size(),
+				activeTrails.size() });
+		if (frameCount % STACK_EVERY_FRAMES == 0) {
+			writeStack();
+		}
+	}
+
+	/**
+	 * Ingests what is already there, then watches for new files until the process is stopped
+	 */
+	public void run() throws IOException, InterruptedException {
+		// Watch before scanning, so nothing written in between is missed. done skips files seen by both.
+		watcher = FileSystems.getDefault().newWatchService();
+		dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		catalog = Catalog.scan(dir, Runtime.getRuntime().availableProcessors());
+		params = Brightest.getParams(DETECTION_MODE) + " " + Calibration.getParams();
+		ImageUtils.getImageFiles(dir).forEach(file -> {
+			done.add(file.toPath());
+			ingest(file);
+		});
+		LOG.log(Level.INFO, "Watching {0}", dir.toAbsolutePath());
+		try {
+			while (true) {
+				final WatchKey key = watcher.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					for (final WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							continue;
+						}
+						final Path path = dir.resolve((Path) event.context());
+						if (!done.contains(path) && path.toString().matches("(?i).*\\.(jpg|png)$")) {
+							pending.putIfAbsent(path, -1L);
+						}
+					}
+					key.reset();
+				}
+
+				// Oldest name first, cameras number sequentially
+				final List<Path> ready = new ArrayList<>();
+				for (final Iterator<Map.Entry<Path, Long>> it = pending.entrySet().iterator(); it.hasNext();) {
+					final Map.Entry<Path, Long> ent = it.next();
+					final long size = ent.getKey().toFile().length();
+					if (isComplete(ent.getKey(), size)) {
+						ready.add(ent.getKey());
+						it.remove();
+					} else {
+						ent.setValue(size);
+					}
+				}
+				ready.sort(null);
+				ready.forEach(path -> {
+					done.add(path);
+					ingest(path.toFile());
+				});
+			}
+		} catch (final ClosedWatchServiceException ex) {
+			LOG.info("Stopped watching");
+		}
+	}
+
+	private void writeStack() {
+		if (width < 0) {
+			return;
+		}
+		ImageUtils.writeImage("live_sum", sum.getResult(), 1, width, height, true);
+		ImageUtils.writeImage("live_max", max.getResult(), 1, width, height, false);
+	}
+}